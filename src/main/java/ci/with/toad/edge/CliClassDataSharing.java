@@ -0,0 +1,259 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * Class data sharing archives of the CLI, which let new CLI processes map the
+ * classes loaded by an earlier run instead of loading them from
+ * <tt>lib</tt> again.
+ * <p>
+ * The first CLI process for a version of the CLI tools writes the archive at
+ * exit (<tt>-XX:ArchiveClassesAtExit</tt>), later processes start with it
+ * (<tt>-XX:SharedArchiveFile</tt>). Archives are kept in
+ * <tt>.cds</tt> of the cached version (see {@link CliToolchainCache}) and are
+ * removed with it. An archive only fits the JVM and options it was written
+ * with, so each combination gets its own archive. JVMs older than 13 cannot
+ * write such archives and run without one.
+ * <p>
+ * Only classes of the built-in class loaders are archived. Classes of the
+ * OSGi bundles in <tt>lib</tt> are loaded by the class loaders of the OSGi
+ * runtime and are not archived, so the saving is limited to the JDK and the
+ * launcher. Logged times are total run times of a CLI action, the startup
+ * is not measured on its own.
+ */
+public class CliClassDataSharing {
+
+	private static final String CDS_DIR = ".cds";
+	private static final String ARCHIVE_SUFFIX = ".jsa";
+	private static final String COLD_SUFFIX = ".cold";
+	private static final String STAGING_SUFFIX = ".tmp-";
+
+	/**
+	 * First Java version supporting archives written at exit.
+	 */
+	private static final int MIN_JAVA_VERSION = 13;
+
+	private static final Pattern JAVA_VERSION = Pattern.compile("JAVA_VERSION=\"(?:1\\.)?(\\d+)");
+
+	private final FilePath cdsDir;
+	private final String archiveName;
+	private final String staging;
+
+	private CliClassDataSharing(FilePath cdsDir, String archiveName, String staging) {
+		this.cdsDir = cdsDir;
+		this.archiveName = archiveName;
+		this.staging = staging;
+	}
+
+	/**
+	 * Looks up the archive for a new CLI process.
+	 *
+	 * @param jvmArguments
+	 *            - java executable followed by JVM options
+	 * @param toolchain
+	 *            - CLI tools to run
+	 * @param listener
+	 *            - build listener
+	 * @return archive to start the process with, <tt>null</tt> if class data
+	 *         sharing is disabled or not supported by the JVM
+	 * @throws IOException
+	 *             - if IO exception occurred while looking up the archive
+	 * @throws InterruptedException
+	 *             - if looking up the archive was interrupted
+	 */
+	public static CliClassDataSharing prepare(List<String> jvmArguments, CliToolchainCache.Lease toolchain,
+			TaskListener listener) throws IOException, InterruptedException {
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+		if (config == null || !config.isCliClassDataSharing()) {
+			return null;
+		}
+		FilePath cdsDir = toolchain.getCliFolder().child(CDS_DIR);
+		String key = cdsDir.act(new KeyCallable(jvmArguments));
+		if (key == null) {
+			log(listener, "CdsNotSupported", jvmArguments.get(0));
+			return null;
+		}
+		String archiveName = key + ARCHIVE_SUFFIX;
+		if (cdsDir.child(archiveName).exists()) {
+			return new CliClassDataSharing(cdsDir, archiveName, null);
+		}
+		log(listener, "CdsArchiveCreating", cdsDir.child(archiveName));
+		return new CliClassDataSharing(cdsDir, archiveName, archiveName + STAGING_SUFFIX + UUID.randomUUID());
+	}
+
+	/**
+	 * @return JVM option writing or using the archive
+	 */
+	public String getOption() {
+		if (staging != null) {
+			return "-XX:ArchiveClassesAtExit=" + cdsDir.child(staging).getRemote();
+		}
+		return "-XX:SharedArchiveFile=" + cdsDir.child(archiveName).getRemote();
+	}
+
+	/**
+	 * Publishes an archive written by the process and logs the total run time
+	 * of the process next to the total run time of the same CLI action in the
+	 * process that wrote the archive.
+	 *
+	 * @param action
+	 *            - CLI action the process ran, e.g. <tt>-compare</tt>
+	 * @param elapsedMillis
+	 *            - total run time of the process
+	 * @param listener
+	 *            - build listener
+	 * @throws IOException
+	 *             - if IO exception occurred while publishing the archive
+	 * @throws InterruptedException
+	 *             - if publishing was interrupted
+	 */
+	public void finish(String action, long elapsedMillis, TaskListener listener)
+			throws IOException, InterruptedException {
+		Long coldMillis = cdsDir.act(new FinishCallable(archiveName, staging, action, elapsedMillis));
+		if (staging == null) {
+			if (coldMillis != null) {
+				log(listener, "CdsArchiveUsed", action, elapsedMillis, coldMillis);
+			} else {
+				log(listener, "CdsArchiveUsedNoReference", action, elapsedMillis);
+			}
+		} else if (coldMillis != null) {
+			log(listener, "CdsArchiveCreated", cdsDir.child(archiveName), action, elapsedMillis);
+		} else {
+			log(listener, "CdsArchiveNotCreated", cdsDir.child(archiveName));
+		}
+	}
+
+	private static void log(TaskListener listener, String key, Object... args) {
+		listener.getLogger()
+				.println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), key, args).toString());
+	}
+
+	/**
+	 * Names the archive by the JVM and its options. Returns <tt>null</tt> if
+	 * the JVM cannot write archives at exit.
+	 */
+	private static class KeyCallable extends MasterToSlaveFileCallable<String> {
+		private static final long serialVersionUID = 1L;
+		private final List<String> jvmArguments;
+
+		KeyCallable(List<String> jvmArguments) {
+			this.jvmArguments = jvmArguments;
+		}
+
+		public String invoke(File cdsDir, VirtualChannel channel) throws IOException, InterruptedException {
+			File javaHome = new File(jvmArguments.get(0)).getAbsoluteFile().getParentFile().getParentFile();
+			File release = javaHome != null ? new File(javaHome, "release") : null;
+			if (release == null || !release.isFile()) {
+				return null;
+			}
+			byte[] content = Files.readAllBytes(release.toPath());
+			Matcher matcher = JAVA_VERSION.matcher(new String(content, StandardCharsets.UTF_8));
+			if (!matcher.find() || Integer.parseInt(matcher.group(1)) < MIN_JAVA_VERSION) {
+				return null;
+			}
+			if (!cdsDir.isDirectory() && !cdsDir.mkdirs() && !cdsDir.isDirectory()) {
+				throw new IOException("Unable to create " + cdsDir.getPath());
+			}
+
+			MessageDigest md = InputFingerprint.newDigest();
+			md.update(content);
+			for (String argument : jvmArguments) {
+				md.update(argument.getBytes(StandardCharsets.UTF_8));
+				md.update((byte) 0);
+			}
+			return Util.toHexString(md.digest()).substring(0, 16);
+		}
+	}
+
+	/**
+	 * Renames a written archive to its final name unless a concurrent process
+	 * published one first. Returns the total run time of the CLI action in
+	 * the process that wrote the archive, <tt>null</tt> if it is not known or
+	 * no archive was written.
+	 */
+	private static class FinishCallable extends MasterToSlaveFileCallable<Long> {
+		private static final long serialVersionUID = 1L;
+		private final String archiveName;
+		private final String staging;
+		private final String action;
+		private final long elapsedMillis;
+
+		FinishCallable(String archiveName, String staging, String action, long elapsedMillis) {
+			this.archiveName = archiveName;
+			this.staging = staging;
+			this.action = action;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		public Long invoke(File cdsDir, VirtualChannel channel) throws IOException, InterruptedException {
+			File archive = new File(cdsDir, archiveName);
+			// run times differ between CLI actions, only the same action is
+			// compared
+			File cold = new File(cdsDir, archiveName + action + COLD_SUFFIX);
+			if (staging == null) {
+				return readMillis(cold);
+			}
+
+			File written = new File(cdsDir, staging);
+			if (!written.isFile() || written.length() == 0) {
+				// JVM failed to write the archive, e.g. after a crash
+				if (written.exists()) {
+					Util.deleteFile(written);
+				}
+				return null;
+			}
+			if (archive.exists() || !written.renameTo(archive)) {
+				// published by a concurrent process
+				Util.deleteFile(written);
+				return readMillis(cold);
+			}
+			Files.write(cold.toPath(), String.valueOf(elapsedMillis).getBytes(StandardCharsets.UTF_8));
+			return elapsedMillis;
+		}
+
+		private static Long readMillis(File file) throws IOException {
+			if (!file.isFile()) {
+				return null;
+			}
+			try {
+				return Long.valueOf(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.remoting.Which;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Keeps one warm CLI process ready on each node.
+ * <p>
+ * The warm process is a JVM started ahead of time by the agent with the CLI
+ * classes already loaded (see {@link CliWarmBootstrap}). A build step hands
+ * its arguments to it over the process standard input and its output is
+ * streamed to the build log. Each warm process serves a single step, because
+ * the CLI starts its own OSGi runtime for the requested workspace, and a
+ * replacement is started in the background right away. If no healthy warm
+ * process is available the caller falls back to starting a new process.
+ * <p>
+ * The warm process saves the JVM startup and the loading of the CLI launcher
+ * classes, measured when it is started and reported in the build log of the
+ * step using it. The OSGi runtime of the CLI still starts for every step.
+ * <p>
+ * Warm processes are kept per command line, so all jobs on a node share them.
+ * The module root of the build is sent with each request and becomes the
+ * working directory of the CLI, the paths given to the CLI are absolute.
+ * <p>
+ * A replacement is started only if {@link CliLimiter} grants a spare
+ * reservation for the node, so waiting warm processes count against the CLI
+ * process and memory limits of the node.
+ */
+public class CliDaemon {
+
+	private static final String BOOTSTRAP_JAR = "toad-edge-bootstrap-";
+	private static final long HEALTH_CHECK_TIMEOUT_SECONDS = 5;
+	private static final long STARTUP_TIMEOUT_SECONDS = 120;
+
+	/**
+	 * Runs the CLI in a warm process on the node the build runs on.
+	 *
+	 * @param jvmArguments
+	 *            - java executable followed by JVM options
+	 * @param cliArguments
+	 *            - arguments passed to the CLI
+	 * @param toolchain
+	 *            - CLI tools to run
+	 * @param isUnix
+	 *            - whether the node runs a Unix-like system
+	 * @param idleTimeoutMinutes
+	 *            - minutes after which an unused warm process is stopped
+	 * @param build
+	 *            - build run
+	 * @param listener
+	 *            - build listener
+	 * @return process output value or <tt>null</tt> if no warm process was
+	 *         available and the CLI has to be started the usual way, with a
+	 *         permit of {@link CliLimiter}
+	 * @throws IOException
+	 *             - if IO exception occurred during execution
+	 * @throws InterruptedException
+	 *             - if execution of process was interrupted
+	 */
+	public static Integer exec(List<String> jvmArguments, List<String> cliArguments, CliToolchainCache.Lease toolchain,
+			boolean isUnix, int idleTimeoutMinutes, AbstractBuild<?, ?> build, TaskListener listener)
+			throws IOException, InterruptedException {
+		List<String> command = getCommand(jvmArguments, toolchain, isUnix, idleTimeoutMinutes, listener);
+		if (command == null) {
+			return null;
+		}
+		Node node = build.getBuiltOn();
+		// the reservation of the warm process becomes the permit of the step
+		CliLimiter.Permit permit = CliLimiter.claimSpare(node);
+		if (permit == null) {
+			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"WarmCliUnavailable").toString());
+			// ready for the next step
+			if (reserveSpare(node, idleTimeoutMinutes, listener)
+					&& !build.getModuleRoot().act(new WarmUpCallable(command, idleTimeoutMinutes))) {
+				CliLimiter.releaseSpare(node);
+			}
+			return null;
+		}
+		try {
+			boolean reserved = reserveSpare(node, idleTimeoutMinutes, listener);
+			RunResult result = build.getModuleRoot()
+					.act(new RunCallable(command, cliArguments, reserved, idleTimeoutMinutes, listener));
+			if (reserved && !result.replenishing) {
+				CliLimiter.releaseSpare(node);
+			}
+			if (!result.tookSpare) {
+				// reserved for another command line, or still starting
+				permit.restoreSpare();
+			}
+			return result.exitCode;
+		} finally {
+			permit.release();
+		}
+	}
+
+	/**
+	 * Starts a warm process on the node the build runs on in the background,
+	 * unless one is already ready or starting.
+	 *
+	 * @param jvmArguments
+	 *            - java executable followed by JVM options
+	 * @param toolchain
+	 *            - CLI tools to run
+	 * @param isUnix
+	 *            - whether the node runs a Unix-like system
+	 * @param idleTimeoutMinutes
+	 *            - minutes after which an unused warm process is stopped
+	 * @param build
+	 *            - build run
+	 * @param listener
+	 *            - build listener
+	 * @throws IOException
+	 *             - if IO exception occurred while preparing the warm process
+	 * @throws InterruptedException
+	 *             - if preparation was interrupted
+	 */
+	public static void warmUp(List<String> jvmArguments, CliToolchainCache.Lease toolchain, boolean isUnix,
+			int idleTimeoutMinutes, AbstractBuild<?, ?> build, TaskListener listener)
+			throws IOException, InterruptedException {
+		List<String> command = getCommand(jvmArguments, toolchain, isUnix, idleTimeoutMinutes, listener);
+		Node node = build.getBuiltOn();
+		if (command != null && reserveSpare(node, idleTimeoutMinutes, listener)) {
+			if (!build.getModuleRoot().act(new WarmUpCallable(command, idleTimeoutMinutes))) {
+				CliLimiter.releaseSpare(node);
+			}
+		}
+	}
+
+	/**
+	 * A spare that fails to start keeps its reservation until it expires.
+	 */
+	private static boolean reserveSpare(Node node, int idleTimeoutMinutes, TaskListener listener) {
+		long lifetime = TimeUnit.SECONDS.toMillis(STARTUP_TIMEOUT_SECONDS)
+				+ TimeUnit.MINUTES.toMillis(idleTimeoutMinutes);
+		if (CliLimiter.reserveSpare(node, lifetime)) {
+			return true;
+		}
+		listener.getLogger().println(
+				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "WarmCliLimited").toString());
+		return false;
+	}
+
+	private static List<String> getCommand(List<String> jvmArguments, CliToolchainCache.Lease toolchain,
+			boolean isUnix, int idleTimeoutMinutes, TaskListener listener) throws IOException, InterruptedException {
+		FilePath bootstrap = getBootstrapJar(toolchain, listener);
+		if (bootstrap == null) {
+			return null;
+		}
+
+		List<String> command = new ArrayList<>(jvmArguments);
+		command.add("-cp");
+		command.add(toolchain.getCliJar().getRemote() + (isUnix ? ":" : ";") + bootstrap.getRemote());
+		command.add(CliWarmBootstrap.class.getName());
+		command.add(toolchain.getCliJar().getRemote());
+		command.add(String.valueOf(TimeUnit.MINUTES.toMillis(idleTimeoutMinutes)));
+		return command;
+	}
+
+	/**
+	 * Copies the plugin jar containing {@link CliWarmBootstrap} next to the
+	 * cached CLI tools, so that it can be put on the warm process class path.
+	 */
+	private static FilePath getBootstrapJar(CliToolchainCache.Lease toolchain, TaskListener listener)
+			throws IOException, InterruptedException {
+		File pluginJar;
+		try {
+			pluginJar = Which.jarFile(CliWarmBootstrap.class);
+		} catch (IOException e) {
+			listener.getLogger().println(e.getMessage());
+			return null;
+		}
+		if (!pluginJar.isFile()) {
+			return null;
+		}
+		FilePath cacheRoot = toolchain.getCliFolder().getParent();
+		FilePath bootstrap = cacheRoot.child(BOOTSTRAP_JAR
+				+ Long.toHexString(pluginJar.length()) + "-" + Long.toHexString(pluginJar.lastModified()) + ".jar");
+		if (!bootstrap.exists()) {
+			FilePath tmp = cacheRoot.createTempFile(BOOTSTRAP_JAR, ".tmp");
+			new FilePath(pluginJar).copyTo(tmp);
+			try {
+				tmp.renameTo(bootstrap);
+			} catch (IOException e) {
+				// copied by a concurrent build in the meantime
+				tmp.delete();
+				if (!bootstrap.exists()) {
+					throw e;
+				}
+			}
+		}
+		return bootstrap;
+	}
+
+	/**
+	 * Agent side part: takes the warm process, starts its replacement and
+	 * streams the output of the run to the build log.
+	 */
+	private static class RunCallable extends MasterToSlaveFileCallable<RunResult> {
+		private static final long serialVersionUID = 1L;
+		private final List<String> command;
+		private final List<String> cliArguments;
+		private final boolean replenish;
+		private final int idleTimeoutMinutes;
+		private final TaskListener listener;
+
+		RunCallable(List<String> command, List<String> cliArguments, boolean replenish, int idleTimeoutMinutes,
+				TaskListener listener) {
+			this.command = command;
+			this.cliArguments = cliArguments;
+			this.replenish = replenish;
+			this.idleTimeoutMinutes = idleTimeoutMinutes;
+			this.listener = listener;
+		}
+
+		public RunResult invoke(File dir, VirtualChannel channel) throws IOException {
+			PrintStream logger = listener.getLogger();
+			RunResult result = new RunResult();
+			WarmProcess warm = Pool.take(command);
+			result.tookSpare = warm != null;
+			if (warm != null && !warm.isHealthy()) {
+				warm.destroy();
+				warm = null;
+			}
+			result.replenishing = replenish && Pool.replenish(command, idleTimeoutMinutes);
+			if (warm == null) {
+				logger.println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+						"WarmCliUnavailable").toString());
+				return result;
+			}
+
+			logger.println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "UsingWarmCli",
+					warm.getAge(), warm.getStartup()).toString());
+			try {
+				result.exitCode = warm.run(dir, cliArguments, logger);
+				return result;
+			} catch (InterruptedException e) {
+				warm.destroy();
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Outcome of a run: exit code, <tt>null</tt> if no warm process was
+	 * ready, and changes of the spares the limiter has to know about.
+	 */
+	private static class RunResult implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private Integer exitCode;
+		private boolean tookSpare;
+		private boolean replenishing;
+	}
+
+	private static class WarmUpCallable extends MasterToSlaveFileCallable<Boolean> {
+		private static final long serialVersionUID = 1L;
+		private final List<String> command;
+		private final int idleTimeoutMinutes;
+
+		WarmUpCallable(List<String> command, int idleTimeoutMinutes) {
+			this.command = command;
+			this.idleTimeoutMinutes = idleTimeoutMinutes;
+		}
+
+		public Boolean invoke(File dir, VirtualChannel channel) throws IOException {
+			return Pool.replenish(command, idleTimeoutMinutes);
+		}
+	}
+
+	/**
+	 * Warm processes of the agent JVM, one per command line.
+	 */
+	private static class Pool {
+		private static final Map<List<String>, WarmProcess> SPARES = new HashMap<>();
+		private static final List<List<String>> STARTING = new ArrayList<>();
+		private static final ExecutorService EXECUTOR = Executors
+				.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(), "Toad Edge warm CLI"));
+		private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(
+				new NamingThreadFactory(new DaemonThreadFactory(), "Toad Edge warm CLI reaper"));
+
+		static WarmProcess take(List<String> command) {
+			synchronized (SPARES) {
+				return SPARES.remove(command);
+			}
+		}
+
+		/**
+		 * @return whether a warm process is being started
+		 */
+		static boolean replenish(final List<String> command, final int idleTimeoutMinutes) {
+			synchronized (SPARES) {
+				if (SPARES.containsKey(command) || STARTING.contains(command)) {
+					return false;
+				}
+				STARTING.add(command);
+			}
+			EXECUTOR.submit(new Runnable() {
+				public void run() {
+					WarmProcess warm = null;
+					try {
+						warm = WarmProcess.start(command);
+					} catch (IOException e) {
+						// the next step falls back to a new process and tries again
+					} finally {
+						synchronized (SPARES) {
+							STARTING.remove(command);
+							if (warm != null) {
+								SPARES.put(command, warm);
+							}
+						}
+					}
+					if (warm != null) {
+						final WarmProcess spare = warm;
+						REAPER.schedule(new Runnable() {
+							public void run() {
+								synchronized (SPARES) {
+									if (SPARES.get(command) != spare) {
+										return;
+									}
+									SPARES.remove(command);
+								}
+								spare.destroy();
+							}
+						}, idleTimeoutMinutes, TimeUnit.MINUTES);
+					}
+				}
+			});
+			return true;
+		}
+	}
+
+	private static class WarmProcess {
+		private final Process process;
+		private final InputStream out;
+		private final OutputStream in;
+		private final long readySince;
+		private final long startupMillis;
+
+		private WarmProcess(Process process, long startupMillis) {
+			this.process = process;
+			this.out = process.getInputStream();
+			this.in = process.getOutputStream();
+			this.readySince = System.currentTimeMillis();
+			this.startupMillis = startupMillis;
+		}
+
+		static WarmProcess start(List<String> command) throws IOException {
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			long start = System.nanoTime();
+			final Process process = builder.start();
+			try {
+				String ready = Pool.EXECUTOR.submit(new Callable<String>() {
+					public String call() throws IOException {
+						// skip anything the JVM prints before the bootstrap is ready
+						String line;
+						while ((line = readLine(process.getInputStream())) != null) {
+							if (line.equals(CliWarmBootstrap.READY)) {
+								break;
+							}
+						}
+						return line;
+					}
+				}).get(STARTUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				if (!CliWarmBootstrap.READY.equals(ready)) {
+					throw new IOException("Warm CLI process did not start");
+				}
+			} catch (Exception e) {
+				process.destroy();
+				throw e instanceof IOException ? (IOException) e : new IOException(e);
+			}
+			return new WarmProcess(process, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+
+		String getAge() {
+			return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - readySince) + " s";
+		}
+
+		/**
+		 * @return time from starting the JVM until the CLI classes were
+		 *         loaded, saved by the step using this process
+		 */
+		String getStartup() {
+			return String.format("%.1f s", startupMillis / 1000.0);
+		}
+
+		boolean isHealthy() {
+			if (!isAlive()) {
+				return false;
+			}
+			try {
+				send(CliWarmBootstrap.PING);
+				Future<String> pong = Pool.EXECUTOR.submit(new Callable<String>() {
+					public String call() throws IOException {
+						return readLine(out);
+					}
+				});
+				return CliWarmBootstrap.PONG.equals(pong.get(HEALTH_CHECK_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+			} catch (Exception e) {
+				return false;
+			}
+		}
+
+		private boolean isAlive() {
+			try {
+				process.exitValue();
+				return false;
+			} catch (IllegalThreadStateException e) {
+				return true;
+			}
+		}
+
+		int run(File dir, List<String> cliArguments, final PrintStream logger)
+				throws IOException, InterruptedException {
+			StringBuilder request = new StringBuilder(CliWarmBootstrap.RUN).append(cliArguments.size());
+			request.append('\n').append(dir.getAbsolutePath());
+			for (String argument : cliArguments) {
+				request.append('\n').append(argument);
+			}
+			send(request.toString());
+			in.close();
+
+			Thread pump = new Thread("Toad Edge warm CLI output") {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[8192];
+					int read;
+					try {
+						while ((read = out.read(buffer)) != -1) {
+							logger.write(buffer, 0, read);
+						}
+					} catch (IOException e) {
+						// process was destroyed
+					}
+					logger.flush();
+				}
+			};
+			pump.setDaemon(true);
+			pump.start();
+			int result = process.waitFor();
+			pump.join();
+			return result;
+		}
+
+		void destroy() {
+			process.destroy();
+		}
+
+		private void send(String line) throws IOException {
+			in.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+			in.flush();
+		}
+
+		/**
+		 * Reads protocol line byte by byte, so that no output following the
+		 * line is buffered away from the output pump.
+		 */
+		private static String readLine(InputStream stream) throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			while ((b = stream.read()) != -1 && b != '\n') {
+				if (b != '\r') {
+					line.write(b);
+				}
+			}
+			if (b == -1 && line.size() == 0) {
+				return null;
+			}
+			return new String(line.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * Limits the number of CLI processes running at the same time on each node.
+ * <p>
+ * Every CLI process is a JVM with its own heap, so too many of them on one
+ * node exhaust its memory. {@link ProcessLauncher} takes a permit from the
+ * limiter of the node before the process is started and returns it when the
+ * process ends. The number of permits is the configured count, or the
+ * configured memory budget divided by the memory reserved for one process,
+ * whichever is lower. Builds waiting for a permit are counted, so queue depth
+ * and waiting times can be shown for each node by {@link CliLimiterAction}.
+ * <p>
+ * Warm CLI processes kept ready by {@link CliDaemon} use memory as well. Each
+ * one is started only if a spare reservation is granted, and reservations
+ * count against the limit like running processes. A spare never takes the
+ * last free slot of a node, so a build step can always start a new process
+ * next to it. A build step taking a warm process turns its reservation into
+ * the permit of the step, without waiting. Reservations of warm processes
+ * that are never taken expire once the warm process would have been stopped
+ * for being idle.
+ */
+public class CliLimiter {
+
+	private static final Map<String, CliLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+	private int running;
+	private int waiting;
+	private final List<Long> spareExpiries = new ArrayList<>();
+	private long launched;
+	private long delayed;
+	private long totalWaitMillis;
+	private long maxWaitMillis;
+
+	/**
+	 * @param nodeName
+	 *            - name of the node, empty for the controller
+	 * @return limiter of the node
+	 */
+	public static CliLimiter get(String nodeName) {
+		CliLimiter limiter = LIMITERS.get(nodeName);
+		if (limiter == null) {
+			CliLimiter created = new CliLimiter();
+			limiter = LIMITERS.putIfAbsent(nodeName, created);
+			if (limiter == null) {
+				limiter = created;
+			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * Waits until a CLI process may be started on a node.
+	 *
+	 * @param node
+	 *            - node the process runs on, <tt>null</tt> for the controller
+	 * @param listener
+	 *            - build listener
+	 * @return permit to release once the process ended
+	 * @throws InterruptedException
+	 *             - if waiting was interrupted
+	 */
+	public static Permit acquire(Node node, TaskListener listener) throws InterruptedException {
+		String nodeName = node != null ? node.getNodeName() : "";
+		CliLimiter limiter = get(nodeName);
+		long start = System.nanoTime();
+		boolean delayed = limiter.acquire(nodeName, listener);
+		if (delayed) {
+			long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			limiter.recordWait(waitMillis);
+			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"CliPermitAcquired", TimeUnit.MILLISECONDS.toSeconds(waitMillis)).toString());
+		}
+		return new Permit(limiter);
+	}
+
+	/**
+	 * Turns the reservation of a warm CLI process into a permit to run it,
+	 * without waiting.
+	 *
+	 * @param node
+	 *            - node the warm process runs on, <tt>null</tt> for the
+	 *            controller
+	 * @return permit to release once the process ended, <tt>null</tt> if no
+	 *         warm process is reserved on the node
+	 */
+	public static Permit claimSpare(Node node) {
+		CliLimiter limiter = get(node != null ? node.getNodeName() : "");
+		Long expiry = limiter.claimSpare();
+		return expiry != null ? new Permit(limiter, expiry) : null;
+	}
+
+	/**
+	 * Reserves room for a warm CLI process on a node, unless it would take
+	 * the last free slot of the node.
+	 *
+	 * @param node
+	 *            - node the warm process runs on, <tt>null</tt> for the
+	 *            controller
+	 * @param lifetimeMillis
+	 *            - time after which the warm process is stopped at the latest
+	 * @return whether the warm process may be started
+	 */
+	public static boolean reserveSpare(Node node, long lifetimeMillis) {
+		return get(node != null ? node.getNodeName() : "").reserveSpare(lifetimeMillis);
+	}
+
+	/**
+	 * Returns a reservation of a warm CLI process that was not started.
+	 *
+	 * @param node
+	 *            - node the warm process runs on, <tt>null</tt> for the
+	 *            controller
+	 */
+	public static void releaseSpare(Node node) {
+		get(node != null ? node.getNodeName() : "").releaseSpare();
+	}
+
+	/**
+	 * @return number of CLI processes allowed on a node at the same time, 0
+	 *         if not limited
+	 */
+	public static int getLimit() {
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+		if (config == null) {
+			return 0;
+		}
+		int limit = config.getCliProcessesPerNode();
+		if (config.getCliMemoryPerNode() > 0) {
+			int byMemory = Math.max(config.getCliMemoryPerNode() / config.getCliMemoryPerProcess(), 1);
+			limit = limit > 0 ? Math.min(limit, byMemory) : byMemory;
+		}
+		return limit;
+	}
+
+	private synchronized boolean acquire(String nodeName, TaskListener listener) throws InterruptedException {
+		boolean delayed = false;
+		int limit = getLimit();
+		if (limit > 0 && running + getSpares() >= limit) {
+			delayed = true;
+			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"CliPermitWaiting", nodeName.isEmpty() ? "master" : nodeName, running, getSpares(), limit,
+					waiting).toString());
+			waiting++;
+			try {
+				while (limit > 0 && running + getSpares() >= limit) {
+					wait(TimeUnit.SECONDS.toMillis(10));
+					// limit may have been changed in the global configuration
+					limit = getLimit();
+				}
+			} finally {
+				waiting--;
+			}
+		}
+		running++;
+		launched++;
+		return delayed;
+	}
+
+	private synchronized void recordWait(long waitMillis) {
+		delayed++;
+		totalWaitMillis += waitMillis;
+		maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+	}
+
+	private synchronized void release() {
+		running--;
+		notifyAll();
+	}
+
+	private synchronized boolean reserveSpare(long lifetimeMillis) {
+		int limit = getLimit();
+		if (limit > 0 && running + getSpares() + 1 >= limit) {
+			// the last slot is kept for a build step starting a new process
+			return false;
+		}
+		spareExpiries.add(System.currentTimeMillis() + lifetimeMillis);
+		return true;
+	}
+
+	private synchronized void releaseSpare() {
+		if (!spareExpiries.isEmpty()) {
+			// the reservation made last expires last
+			spareExpiries.remove(Collections.max(spareExpiries));
+		}
+		notifyAll();
+	}
+
+	private synchronized Long claimSpare() {
+		if (getSpares() == 0) {
+			return null;
+		}
+		// any warm process may be taken, the oldest expires first
+		Long expiry = Collections.min(spareExpiries);
+		spareExpiries.remove(expiry);
+		running++;
+		launched++;
+		return expiry;
+	}
+
+	private synchronized void restoreSpare(long expiry) {
+		running--;
+		spareExpiries.add(expiry);
+		notifyAll();
+	}
+
+	/**
+	 * @return number of CLI processes running on the node
+	 */
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	/**
+	 * @return number of warm CLI processes reserved on the node
+	 */
+	public synchronized int getSpares() {
+		long now = System.currentTimeMillis();
+		Iterator<Long> expiries = spareExpiries.iterator();
+		while (expiries.hasNext()) {
+			if (expiries.next() < now) {
+				// stopped for being idle, or failed to start
+				expiries.remove();
+			}
+		}
+		return spareExpiries.size();
+	}
+
+	/**
+	 * @return number of builds waiting for a permit
+	 */
+	public synchronized int getWaiting() {
+		return waiting;
+	}
+
+	/**
+	 * @return number of CLI processes started since the controller started
+	 */
+	public synchronized long getLaunched() {
+		return launched;
+	}
+
+	/**
+	 * @return number of CLI processes that had to wait for a permit
+	 */
+	public synchronized long getDelayed() {
+		return delayed;
+	}
+
+	/**
+	 * @return average wait of the delayed CLI processes in milliseconds
+	 */
+	public synchronized long getAverageWaitMillis() {
+		return delayed > 0 ? totalWaitMillis / delayed : 0;
+	}
+
+	/**
+	 * @return longest wait for a permit in milliseconds
+	 */
+	public synchronized long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	/**
+	 * Permission to run one CLI process.
+	 */
+	public static class Permit {
+		private CliLimiter limiter;
+		private final long spareExpiry;
+
+		Permit(CliLimiter limiter) {
+			this(limiter, 0);
+		}
+
+		Permit(CliLimiter limiter, long spareExpiry) {
+			this.limiter = limiter;
+			this.spareExpiry = spareExpiry;
+		}
+
+		/**
+		 * Turns a permit from {@link CliLimiter#claimSpare} back into the
+		 * reservation it was claimed from, because the warm process belongs
+		 * to another command line. Further calls do nothing.
+		 */
+		public void restoreSpare() {
+			if (limiter != null) {
+				limiter.restoreSpare(spareExpiry);
+				limiter = null;
+			}
+		}
+
+		/**
+		 * Returns the permit. Further calls do nothing.
+		 */
+		public void release() {
+			if (limiter != null) {
+				limiter.release();
+				limiter = null;
+			}
+		}
+	}
+}
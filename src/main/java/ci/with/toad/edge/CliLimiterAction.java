@@ -0,0 +1,77 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.TransientComputerActionFactory;
+
+/**
+ * Node action showing the CLI processes running on the node and the builds
+ * waiting for them, read from {@link CliLimiter}.
+ */
+public class CliLimiterAction implements Action {
+
+	private final Computer computer;
+
+	public CliLimiterAction(Computer computer) {
+		this.computer = computer;
+	}
+
+	public Computer getComputer() {
+		return computer;
+	}
+
+	public CliLimiter getLimiter() {
+		return CliLimiter.get(computer.getName());
+	}
+
+	/**
+	 * @return number of CLI processes allowed at the same time, 0 if not
+	 *         limited
+	 */
+	public int getLimit() {
+		return CliLimiter.getLimit();
+	}
+
+	public String getDisplayName() {
+		return "Toad Edge CLI";
+	}
+
+	public String getIconFileName() {
+		return "clock.png";
+	}
+
+	public String getUrlName() {
+		return "toadEdgeCli";
+	}
+
+	/**
+	 * Adds the queue to every node.
+	 */
+	@Extension
+	public static class Factory extends TransientComputerActionFactory {
+		@Override
+		public Collection<? extends Action> createFor(Computer target) {
+			return Collections.singletonList(new CliLimiterAction(target));
+		}
+	}
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * Per-node cache of extracted Continuous Integration with Toad Edge CLI tools.
+ * <p>
+ * Each version of the configured libraries archive is extracted once into
+ * <tt>&lt;node root&gt;/toad-edge-cli/&lt;sha-256 of zip&gt;</tt> and shared by
+ * all jobs running on that node. A version directory is only visible once it
+ * has been completely extracted and marked, and running builds hold a lease
+ * on it so that old versions are evicted only when nobody uses them.
+ */
+public class CliToolchainCache {
+
+	private static final String CACHE_DIR = "toad-edge-cli";
+	private static final String COMPLETE_MARKER = ".complete";
+	private static final String LEASES_DIR = ".leases";
+	private static final String LOCK_FILE = ".lock";
+	private static final String STAGING_SUFFIX = ".tmp-";
+	private static final String EVICTED_SUFFIX = ".evicted-";
+
+	/**
+	 * Number of versions (including the current one) kept on a node.
+	 */
+	private static final int RETAINED_VERSIONS = 2;
+
+	/**
+	 * Leases and staging folders older than this are considered left over by
+	 * a killed agent.
+	 */
+	private static final long STALE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+	/**
+	 * Digests of libraries archives, keyed by absolute path. An entry is only
+	 * reused while the archive size and modification time stay the same.
+	 */
+	private static final Map<String, ArchiveDigest> DIGESTS = new ConcurrentHashMap<>();
+
+	/**
+	 * File locks are held per JVM, so builds running in the same agent JVM
+	 * have to be serialized before they try to take the file lock.
+	 */
+	private static final Object LOCAL_LOCK = new Object();
+
+	/**
+	 * Makes sure that CLI tools of the configured libraries archive are
+	 * available on the node the build runs on and takes a lease on them.
+	 *
+	 * @param build
+	 *            - build run
+	 * @param listener
+	 *            - build listener
+	 * @return lease on the cached CLI tools, must be released after use
+	 * @throws IOException
+	 *             - if the archive cannot be read or extracted
+	 * @throws InterruptedException
+	 *             - if the extraction was interrupted
+	 */
+	public static Lease acquire(AbstractBuild<?, ?> build, TaskListener listener)
+			throws IOException, InterruptedException {
+		return acquire(getRoot(build), listener);
+	}
+
+	/**
+	 * Makes sure that CLI tools of the configured libraries archive are
+	 * available on a node and takes a lease on them.
+	 *
+	 * @param root
+	 *            - root folder of the node
+	 * @param listener
+	 *            - build listener
+	 * @return lease on the cached CLI tools, must be released after use
+	 * @throws IOException
+	 *             - if the archive cannot be read or extracted
+	 * @throws InterruptedException
+	 *             - if the extraction was interrupted
+	 */
+	public static Lease acquire(FilePath root, TaskListener listener) throws IOException, InterruptedException {
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+
+		if (config == null) {
+			throw new RuntimeException("MainConfiguration extension is not available.");
+		}
+		if (config.getLibs() == null) {
+			throw new RuntimeException("Path to libraries folder is undefined.");
+		}
+		File zip = new File(config.getLibs());
+		String digest = getDigest(zip);
+
+		FilePath cacheRoot = root.child(CACHE_DIR);
+		FilePath versionDir = cacheRoot.child(digest);
+		String leaseId = UUID.randomUUID().toString();
+
+		String jarName = versionDir.act(new LeaseCallable(leaseId));
+		if (jarName != null) {
+			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"UsingCachedCliTools", versionDir).toString());
+			return new Lease(versionDir, jarName, leaseId);
+		}
+
+		FilePath staging = cacheRoot.child(digest + STAGING_SUFFIX + leaseId);
+		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+				"ExtractingCliTools", zip, versionDir).toString());
+		new FilePath(zip).unzip(staging);
+
+		InstallResult installed = staging.act(new InstallCallable(digest, leaseId));
+		for (String evicted : installed.evicted) {
+			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"EvictingCliTools", cacheRoot.child(evicted)).toString());
+		}
+		return new Lease(versionDir, installed.jarName, leaseId);
+	}
+
+	private static FilePath getRoot(AbstractBuild<?, ?> build) {
+		Node node = build.getBuiltOn();
+		FilePath root = node != null ? node.getRootPath() : null;
+		if (root == null) {
+			root = build.getWorkspace();
+		}
+		return root;
+	}
+
+	static String getDigest(File zip) throws IOException {
+		String key = zip.getAbsolutePath();
+		ArchiveDigest cached = DIGESTS.get(key);
+		if (cached != null && cached.matches(zip)) {
+			return cached.digest;
+		}
+		ArchiveDigest computed = new ArchiveDigest(zip.length(), zip.lastModified(), sha256(zip));
+		DIGESTS.put(key, computed);
+		return computed.digest;
+	}
+
+	private static String sha256(File file) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				md.update(buffer, 0, read);
+			}
+		}
+		return Util.toHexString(md.digest());
+	}
+
+	private static String findCliJar(File dir) {
+		String[] names = dir.list();
+		if (names == null) {
+			return null;
+		}
+		for (String name : names) {
+			if (name.endsWith(".jar")) {
+				return name;
+			}
+		}
+		return null;
+	}
+
+	private static FileLock lock(RandomAccessFile lockFile) throws IOException {
+		return lockFile.getChannel().lock();
+	}
+
+	private static File createLease(File versionDir, String leaseId) throws IOException {
+		File leases = new File(versionDir, LEASES_DIR);
+		if (!leases.isDirectory() && !leases.mkdirs()) {
+			throw new IOException("Unable to create " + leases.getPath());
+		}
+		File lease = new File(leases, leaseId);
+		Files.write(lease.toPath(), new byte[0]);
+		File marker = new File(versionDir, COMPLETE_MARKER);
+		marker.setLastModified(System.currentTimeMillis());
+		return lease;
+	}
+
+	private static boolean isInUse(File versionDir) {
+		File[] leases = new File(versionDir, LEASES_DIR).listFiles();
+		if (leases == null) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		for (File lease : leases) {
+			if (now - lease.lastModified() < STALE_MILLIS) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Must be called with the cache lock held. Moves unused old versions out
+	 * of the way so that they can be deleted without holding the lock.
+	 */
+	private static List<File> evict(File cacheRoot, String current) throws IOException {
+		File[] entries = cacheRoot.listFiles();
+		if (entries == null) {
+			return Collections.emptyList();
+		}
+		long now = System.currentTimeMillis();
+		List<File> versions = new ArrayList<>();
+		List<File> doomed = new ArrayList<>();
+		for (File entry : entries) {
+			String name = entry.getName();
+			if (!entry.isDirectory() || name.equals(current)) {
+				continue;
+			}
+			if (name.contains(STAGING_SUFFIX) || name.contains(EVICTED_SUFFIX)) {
+				if (now - entry.lastModified() > STALE_MILLIS) {
+					doomed.add(entry);
+				}
+				continue;
+			}
+			versions.add(entry);
+		}
+
+		Collections.sort(versions, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(new File(b, COMPLETE_MARKER).lastModified(),
+						new File(a, COMPLETE_MARKER).lastModified());
+			}
+		});
+		for (int i = RETAINED_VERSIONS - 1; i < versions.size(); i++) {
+			File version = versions.get(i);
+			if (isInUse(version)) {
+				continue;
+			}
+			File evicted = new File(cacheRoot, version.getName() + EVICTED_SUFFIX + UUID.randomUUID());
+			if (version.renameTo(evicted)) {
+				doomed.add(evicted);
+			}
+		}
+		return doomed;
+	}
+
+	/**
+	 * Lease on a cached CLI tools version.
+	 */
+	public static class Lease {
+		private final FilePath cliFolder;
+		private final String jarName;
+		private final String leaseId;
+
+		Lease(FilePath cliFolder, String jarName, String leaseId) {
+			this.cliFolder = cliFolder;
+			this.jarName = jarName;
+			this.leaseId = leaseId;
+		}
+
+		/**
+		 * @return folder containing extracted CLI tools
+		 */
+		public FilePath getCliFolder() {
+			return cliFolder;
+		}
+
+		/**
+		 * @return CLI jar file
+		 */
+		public FilePath getCliJar() {
+			return cliFolder.child(jarName);
+		}
+
+		/**
+		 * Releases the lease so that the version may be evicted later.
+		 */
+		public void release() throws IOException, InterruptedException {
+			cliFolder.child(LEASES_DIR).child(leaseId).delete();
+		}
+	}
+
+	private static class ArchiveDigest {
+		private final long size;
+		private final long lastModified;
+		private final String digest;
+
+		ArchiveDigest(long size, long lastModified, String digest) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+
+		boolean matches(File zip) {
+			return zip.length() == size && zip.lastModified() == lastModified;
+		}
+	}
+
+	private static class InstallResult implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String jarName;
+		private final List<String> evicted;
+
+		InstallResult(String jarName, List<String> evicted) {
+			this.jarName = jarName;
+			this.evicted = evicted;
+		}
+	}
+
+	/**
+	 * Looks up a complete version directory and takes a lease on it. Returns
+	 * name of the CLI jar, or <tt>null</tt> if the version is not cached yet.
+	 */
+	private static class LeaseCallable extends MasterToSlaveFileCallable<String> {
+		private static final long serialVersionUID = 1L;
+		private final String leaseId;
+
+		LeaseCallable(String leaseId) {
+			this.leaseId = leaseId;
+		}
+
+		public String invoke(File versionDir, VirtualChannel channel) throws IOException, InterruptedException {
+			File cacheRoot = versionDir.getParentFile();
+			if (!cacheRoot.isDirectory() && !cacheRoot.mkdirs()) {
+				throw new IOException("Unable to create " + cacheRoot.getPath());
+			}
+			synchronized (LOCAL_LOCK) {
+				try (RandomAccessFile lockFile = new RandomAccessFile(new File(cacheRoot, LOCK_FILE), "rw");
+						FileLock lock = lock(lockFile)) {
+					if (!new File(versionDir, COMPLETE_MARKER).isFile()) {
+						return null;
+					}
+					String jarName = findCliJar(versionDir);
+					if (jarName == null) {
+						return null;
+					}
+					createLease(versionDir, leaseId);
+					return jarName;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Publishes a freshly extracted staging directory as a complete version,
+	 * takes a lease on it and evicts unused old versions.
+	 */
+	private static class InstallCallable extends MasterToSlaveFileCallable<InstallResult> {
+		private static final long serialVersionUID = 1L;
+		private final String digest;
+		private final String leaseId;
+
+		InstallCallable(String digest, String leaseId) {
+			this.digest = digest;
+			this.leaseId = leaseId;
+		}
+
+		public InstallResult invoke(File staging, VirtualChannel channel) throws IOException, InterruptedException {
+			if (findCliJar(staging) == null) {
+				Util.deleteRecursive(staging);
+				throw new IOException("Configured folder doesn't contain CLI tools");
+			}
+			Files.write(new File(staging, COMPLETE_MARKER).toPath(), digest.getBytes(StandardCharsets.UTF_8));
+
+			File cacheRoot = staging.getParentFile();
+			File versionDir = new File(cacheRoot, digest);
+			List<File> doomed;
+			String jarName;
+			synchronized (LOCAL_LOCK) {
+				try (RandomAccessFile lockFile = new RandomAccessFile(new File(cacheRoot, LOCK_FILE), "rw");
+						FileLock lock = lock(lockFile)) {
+					if (new File(versionDir, COMPLETE_MARKER).isFile()) {
+						// another build finished extracting the same version first
+						Util.deleteRecursive(staging);
+					} else {
+						if (versionDir.exists()) {
+							Util.deleteRecursive(versionDir);
+						}
+						try {
+							Files.move(staging.toPath(), versionDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+						} catch (AtomicMoveNotSupportedException | FileAlreadyExistsException e) {
+							Files.move(staging.toPath(), versionDir.toPath());
+						}
+					}
+					jarName = findCliJar(versionDir);
+					createLease(versionDir, leaseId);
+					doomed = evict(cacheRoot, digest);
+				}
+			}
+
+			List<String> evicted = new ArrayList<>();
+			for (File dir : doomed) {
+				Util.deleteRecursive(dir);
+				evicted.add(dir.getName());
+			}
+			return new InstallResult(jarName, evicted);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Entry point of a warm CLI process started by {@link CliDaemon}.
+ * <p>
+ * The process is started ahead of time with the CLI jar on its class path,
+ * loads the CLI classes and then waits on standard input for a single
+ * request: the number of arguments, the working directory and the arguments,
+ * one per line. Once the request arrives the working directory is set as
+ * <tt>user.dir</tt>, the CLI main method is invoked with the received
+ * arguments and the process exits with its result. This class runs
+ * outside of Jenkins and must not use any Jenkins classes.
+ */
+public final class CliWarmBootstrap {
+
+	static final String READY = "TOAD_EDGE_CLI_READY";
+	static final String PING = "TOAD_EDGE_CLI_PING";
+	static final String PONG = "TOAD_EDGE_CLI_PONG";
+	static final String RUN = "TOAD_EDGE_CLI_RUN ";
+
+	private static volatile boolean started;
+
+	/**
+	 * @param args
+	 *            - CLI jar location and idle timeout in milliseconds
+	 */
+	public static void main(String[] args) throws Exception {
+		File cliJar = new File(args[0]);
+		final long idleMillis = Long.parseLong(args[1]);
+
+		ClassLoader loader = ClassLoader.getSystemClassLoader();
+		String mainClassName;
+		try (JarFile jar = new JarFile(cliJar)) {
+			mainClassName = jar.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+			preload(jar, loader);
+		}
+		Method main = Class.forName(mainClassName, false, loader).getMethod("main", String[].class);
+
+		Thread watchdog = new Thread("idle watchdog") {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(idleMillis);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (!started) {
+					System.exit(0);
+				}
+			}
+		};
+		watchdog.setDaemon(true);
+		watchdog.start();
+
+		System.out.println(READY);
+		System.out.flush();
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.equals(PING)) {
+				System.out.println(PONG);
+				System.out.flush();
+			} else if (line.startsWith(RUN)) {
+				String[] cliArgs = new String[Integer.parseInt(line.substring(RUN.length()).trim())];
+				System.setProperty("user.dir", in.readLine());
+				for (int i = 0; i < cliArgs.length; i++) {
+					cliArgs[i] = in.readLine();
+				}
+				started = true;
+				Thread.currentThread().setContextClassLoader(loader);
+				int result = 0;
+				try {
+					main.invoke(null, (Object) cliArgs);
+				} catch (InvocationTargetException e) {
+					e.getCause().printStackTrace();
+					result = 1;
+				}
+				System.out.flush();
+				System.err.flush();
+				System.exit(result);
+			}
+		}
+		// agent closed the pipe
+		System.exit(0);
+	}
+
+	/**
+	 * Loads (without initializing) all classes of the CLI jar, so that the
+	 * work is done before the request arrives.
+	 */
+	private static void preload(JarFile jar, ClassLoader loader) {
+		Enumeration<JarEntry> entries = jar.entries();
+		while (entries.hasMoreElements()) {
+			String name = entries.nextElement().getName();
+			if (!name.endsWith(".class") || name.contains("-")) {
+				continue;
+			}
+			try {
+				Class.forName(name.substring(0, name.length() - 6).replace('/', '.'), false, loader);
+			} catch (Throwable t) {
+				// optional classes of the CLI may not be linkable, they are not needed to warm up
+			}
+		}
+	}
+
+	private CliWarmBootstrap() {
+	}
+}
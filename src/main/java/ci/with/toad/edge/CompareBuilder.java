@@ -18,22 +18,26 @@
 package ci.with.toad.edge;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.jvnet.localizer.Localizable;
 import org.jvnet.localizer.ResourceBundleHolder;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
-import com.google.common.io.Files;
-
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Node;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
@@ -50,6 +54,10 @@ public class CompareBuilder extends Builder {
 	private String srcInputFileOrFolder;
 	private String tgtInputFileOrFolder;
 	private String configFile;
+	private boolean useCompareCache;
+	private boolean shardBySchema;
+	private String fanOutLabel;
+	private JvmProfile jvmProfile;
 	private static final String SOURCE = "IN_SOURCE";
 	private static final String TARGET = "IN_TARGET";
 	private static final String CONFIG = "CONFIG";
@@ -98,38 +106,68 @@ public class CompareBuilder extends Builder {
 		return configFile;
 	}
 
-	private FilePath getTmpInSource(AbstractBuild<?, ?> build) throws IOException, InterruptedException {
-		FilePath sourceInput = FileUtils.getFilePath(build, srcInputFileOrFolder);
-		if (sourceInput.isDirectory()) {
-			return new FilePath(build.getWorkspace(), SOURCE + build.number);
-		}
-		return new FilePath(build.getWorkspace(),
-				SOURCE + build.number + "." + Files.getFileExtension(sourceInput.getName()));
+	/**
+	 * @return whether output of an earlier compare with identical inputs is
+	 *         reused. used from the <tt>config.jelly</tt> to display on build
+	 *         step.
+	 */
+	public boolean isUseCompareCache() {
+		return useCompareCache;
 	}
 
-	private FilePath getTmpInTarget(AbstractBuild<?, ?> build) throws IOException, InterruptedException {
-		FilePath targetInput = FileUtils.getFilePath(build, tgtInputFileOrFolder);
-		if (targetInput.isDirectory()) {
-			return new FilePath(build.getWorkspace(), TARGET + build.number);
-		}
-		return new FilePath(build.getWorkspace(),
-				TARGET + build.number + "." + Files.getFileExtension(targetInput.getName()));
+	@DataBoundSetter
+	public void setUseCompareCache(boolean useCompareCache) {
+		this.useCompareCache = useCompareCache;
 	}
 
-	private FilePath getTmpOutput(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), TMP_OUTPUT + build.number);
+	/**
+	 * @return whether schema folders of the inputs are compared in parallel.
+	 *         used from the <tt>config.jelly</tt> to display on build step.
+	 */
+	public boolean isShardBySchema() {
+		return shardBySchema;
+	}
+
+	@DataBoundSetter
+	public void setShardBySchema(boolean shardBySchema) {
+		this.shardBySchema = shardBySchema;
+	}
+
+	/**
+	 * @return label of the agents schemas are spread across, empty if they are
+	 *         compared on the node the build runs on. used from the
+	 *         <tt>config.jelly</tt> to display on build step.
+	 */
+	public String getFanOutLabel() {
+		return fanOutLabel;
+	}
+
+	@DataBoundSetter
+	public void setFanOutLabel(String fanOutLabel) {
+		this.fanOutLabel = Util.fixEmptyAndTrim(fanOutLabel);
+	}
+
+	/**
+	 * @return JVM profile of the CLI, <tt>null</tt> for the profile of the
+	 *         global configuration. used from the <tt>config.jelly</tt> to
+	 *         display on build step.
+	 */
+	public JvmProfile getJvmProfile() {
+		return jvmProfile;
+	}
+
+	@DataBoundSetter
+	public void setJvmProfile(JvmProfile jvmProfile) {
+		this.jvmProfile = jvmProfile;
 	}
 
-	private FilePath getTmpConfig(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), CONFIG + build.number);
+	private FilePath getTmpOutput(AbstractBuild<?, ?> build) {
+		return new FilePath(build.getWorkspace(), FileUtils.getTempName(TMP_OUTPUT, build));
 	}
 
 	@Override
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
 			throws IOException, InterruptedException {
-		System.setOut(listener.getLogger());
-		System.setErr(listener.getLogger());
-
 		FormValidation checkValidation = FormValidationUtil.restrictLocation(srcInputFileOrFolder, build);
 		if(checkValidation != FormValidation.ok()) {
 			throw new Error(checkValidation.getMessage());
@@ -143,144 +181,96 @@ public class CompareBuilder extends Builder {
 			throw new Error(checkValidationConfig.getMessage());
 		}
 
-		copyBuildFiles(build, listener);
-		ensureTmpOutputFolder(build, listener);
-
-		Map<String, String> arguments = new HashMap<>();
-		arguments.put("-in_source", getTmpInSource(build).toURI().getPath());
-		arguments.put("-in_target", getTmpInTarget(build).toURI().getPath());
-		arguments.put("-out", getTmpOutput(build).toURI().getPath());
-		if (configFile != null && !configFile.isEmpty()) {
-			arguments.put("-settings", getTmpConfig(build).toURI().getPath());
-		}
-		arguments.put("-compare", "");
-
-		boolean result = (ProcessLauncher.exec(arguments, build, launcher, listener) == 0);
+		InputStager stager = new InputStager(build, listener);
+		try {
+			InputStager.Staged output = stager.addOutput(getTmpOutput(build), true);
+			// output of a compare by schema has a different layout
+			String cacheKey = useCompareCache ? CompareCache.getKey(build, listener,
+					shardBySchema ? "-compare-by-schema" : "-compare", srcInputFileOrFolder, tgtInputFileOrFolder,
+					configFile) : null;
+
+			boolean result;
+			if (cacheKey != null && CompareCache.restore(build, cacheKey, getTmpOutput(build), listener)) {
+				result = true;
+			} else {
+				InputStager.Staged source = stager.add(srcInputFileOrFolder, FileUtils.getTempName(SOURCE, build));
+				InputStager.Staged target = stager.add(tgtInputFileOrFolder, FileUtils.getTempName(TARGET, build));
+				InputStager.Staged config = null;
+				if (configFile != null && !configFile.isEmpty()) {
+					config = stager.add(configFile, FileUtils.getTempName(CONFIG, build), false);
+				}
+				stager.stage();
+
+				List<String> shards = shardBySchema
+						? ShardedCompare.getShards(source.getFilePath(), target.getFilePath())
+						: Collections.<String>emptyList();
+				if (!shards.isEmpty()) {
+					listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+							"ShardsFound", shards.size(), Util.join(shards, ", ")).toString());
+					List<Node> nodes = fanOutLabel != null ? ShardedCompare.getNodes(fanOutLabel)
+							: Collections.<Node>emptyList();
+					if (!nodes.isEmpty()) {
+						List<String> names = new ArrayList<>();
+						for (Node node : nodes) {
+							names.add(node.getDisplayName());
+						}
+						listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+								"FanOutNodes", fanOutLabel, Util.join(names, ", ")).toString());
+						result = ShardedCompare.compareOnNodes(listener, jvmProfile, shards, nodes, source.getFilePath(),
+								target.getFilePath(), config != null ? config.getFilePath() : null,
+								output.getFilePath());
+					} else {
+						if (fanOutLabel != null) {
+							listener.getLogger().println(new Localizable(
+									ResourceBundleHolder.get(MainConfiguration.class), "FanOutNoNodes", fanOutLabel)
+											.toString());
+						}
+						result = ShardedCompare.compare(build, launcher, listener, jvmProfile, shards,
+								source.getFilePath(), target.getFilePath(),
+								config != null ? config.getFilePath() : null, output.getFilePath());
+					}
+				} else {
+					if (shardBySchema) {
+						listener.getLogger().println(new Localizable(
+								ResourceBundleHolder.get(MainConfiguration.class), "ShardsNotFound").toString());
+					}
+					Map<String, String> arguments = new HashMap<>();
+					arguments.put("-in_source", source.getPath());
+					arguments.put("-in_target", target.getPath());
+					arguments.put("-out", output.getPath());
+					if (config != null) {
+						arguments.put("-settings", config.getPath());
+					}
+					arguments.put("-compare", "");
+
+					result = (ProcessLauncher.exec(arguments, build, launcher, listener, jvmProfile) == 0);
+				}
+				if (cacheKey != null && result) {
+					CompareCache.store(build, cacheKey, getTmpOutput(build), listener);
+				}
+			}
 
-		copyOutputFromTmp(build, listener);
-		deleteBuildFiles(build, listener);
+			CompareResultParser.attach(build, getTmpOutput(build), listener);
+			copyOutputFromTmp(build, listener);
 
-		return result;
+			return result;
+		} finally {
+			stager.cleanup();
+		}
 	}
 
 	private void copyOutputFromTmp(AbstractBuild<?, ?> build, BuildListener listener)
 			throws IOException, InterruptedException {
 		FilePath tmpOutput = getTmpOutput(build);
 		FilePath output = FileUtils.getFilePath(build, outputFolder);
-		if (!output.exists()) {
-			output.mkdirs();
-		}
 		listener.getLogger().println(
 				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", tmpOutput, output)
 						.toString());
-		tmpOutput.copyRecursiveTo(output);
+		StagingCopier.publish(tmpOutput, output);
 		listener.getLogger().println(
 				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
 	}
 
-	private void ensureTmpOutputFolder(AbstractBuild<?, ?> build, BuildListener listener)
-			throws IOException, InterruptedException {
-		FilePath tmpOutput = getTmpOutput(build);
-
-		if (!tmpOutput.exists()) {
-			listener.getLogger().println(
-					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CreatingTmpFolder", tmpOutput)
-							.toString());
-			tmpOutput.mkdirs();
-		}
-	}
-
-	private void copyBuildFiles(AbstractBuild<?, ?> build, BuildListener listener)
-			throws IOException, InterruptedException {
-		FilePath sourceInput = FileUtils.getFilePath(build, srcInputFileOrFolder);
-		FilePath targetInput = FileUtils.getFilePath(build, tgtInputFileOrFolder);
-		FilePath config = FileUtils.getFilePath(build, configFile);
-
-		if (sourceInput.isDirectory()) {
-			FilePath workspaceSource = getTmpInSource(build);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
-					"CopyingXtoY", sourceInput, workspaceSource).toString());
-			sourceInput.copyRecursiveTo(workspaceSource);
-			listener.getLogger().println(
-					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
-		} else {
-			FilePath workspaceSource = getTmpInSource(build);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
-					"CopyingXtoY", sourceInput, workspaceSource).toString());
-			sourceInput.copyTo(workspaceSource);
-			listener.getLogger().println(
-					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
-		}
-
-		if (targetInput.isDirectory()) {
-			FilePath workspaceTarget = getTmpInTarget(build);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
-					"CopyingXtoY", targetInput, workspaceTarget).toString());
-			targetInput.copyRecursiveTo(workspaceTarget);
-			listener.getLogger().println(
-					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
-		} else {
-			FilePath workspaceTarget = getTmpInTarget(build);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
-					"CopyingXtoY", targetInput, workspaceTarget).toString());
-			targetInput.copyTo(workspaceTarget);
-			listener.getLogger().println(
-					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
-		}
-
-		if (configFile != null && !configFile.isEmpty()) {
-			FilePath workspaceConfig = getTmpConfig(build);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY",
-					config, workspaceConfig).toString());
-			config.copyTo(workspaceConfig);
-			listener.getLogger().println(
-					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
-		}
-	}
-
-	private void deleteBuildFiles(AbstractBuild<?, ?> build, BuildListener listener)
-			throws IOException, InterruptedException {
-		FilePath sourceInput = getTmpInSource(build);
-		FilePath targetInput = getTmpInTarget(build);
-		FilePath config = getTmpConfig(build);
-
-		if (sourceInput.isDirectory()) {
-			listener.getLogger().println(
-					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", sourceInput)
-							.toString());
-			sourceInput.deleteRecursive();
-		} else {
-			listener.getLogger().println(
-					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", sourceInput)
-							.toString());
-			sourceInput.delete();
-		}
-
-		if (targetInput.isDirectory()) {
-			listener.getLogger().println(
-					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", targetInput)
-							.toString());
-			targetInput.deleteRecursive();
-		} else {
-			listener.getLogger().println(
-					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", targetInput)
-							.toString());
-			targetInput.delete();
-		}
-		
-		if (configFile != null && !configFile.isEmpty()) {
-			listener.getLogger().println(
-					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", config).toString());
-			config.delete();
-		}
-
-		FilePath output = getTmpOutput(build);
-
-		listener.getLogger().println(
-				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", output).toString());
-		output.deleteRecursive();
-	}
-
 	// Overridden for better type safety.
 	// If your plugin doesn't really define any property on Descriptor,
 	// you don't have to do this.
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * Per-node cache of compare outputs keyed by fingerprints of the compare
+ * inputs.
+ * <p>
+ * Outputs are kept in <tt>&lt;node root&gt;/toad-edge-compare-cache/&lt;key&gt;</tt>
+ * and linked into the workspace when a later compare on the same node gets
+ * inputs with the same content, settings and CLI version. The cache is
+ * bounded by the configured size, least recently used outputs are evicted
+ * first. Only successful compares are cached.
+ */
+public class CompareCache {
+
+	private static final String CACHE_DIR = "toad-edge-compare-cache";
+	private static final String OUTPUT = "output";
+	private static final String ORIGIN = "origin";
+	private static final String SIZE = "size";
+	private static final String LOCK_FILE = ".lock";
+	private static final String STAGING_SUFFIX = ".tmp-";
+	private static final String EVICTED_SUFFIX = ".evicted-";
+
+	/**
+	 * Age after which leftovers of interrupted builds are removed.
+	 */
+	private static final long STALE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+	/**
+	 * File locks are held per JVM, so builds running in the same agent JVM
+	 * have to be serialized before they try to take the file lock.
+	 */
+	private static final Object LOCAL_LOCK = new Object();
+
+	/**
+	 * Computes cache key of a compare.
+	 *
+	 * @param build
+	 *            - build running the compare
+	 * @param listener
+	 *            - build listener
+	 * @param action
+	 *            - CLI arguments selecting the kind of compare
+	 * @param locations
+	 *            - input locations as configured in the build step, empty
+	 *            for inputs not used
+	 * @return key or <tt>null</tt> if the cache is disabled or an input is
+	 *         missing
+	 * @throws IOException
+	 *             - if an input cannot be read
+	 * @throws InterruptedException
+	 *             - if fingerprinting was interrupted
+	 */
+	public static String getKey(AbstractBuild<?, ?> build, TaskListener listener, String action,
+			String... locations) throws IOException, InterruptedException {
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+		if (config == null || config.getCompareCacheSize() == 0 || config.getLibs() == null) {
+			return null;
+		}
+		FilePath[] inputs = new FilePath[locations.length];
+		for (int i = 0; i < locations.length; i++) {
+			inputs[i] = locations[i] != null && !locations[i].isEmpty() && !SnapshotStore.isReference(locations[i])
+					? FileUtils.getFilePath(build, locations[i]) : null;
+		}
+		List<String> fingerprints = new ArrayList<>(InputFingerprint.of(build.getWorkspace(), inputs));
+		for (int i = 0; i < locations.length; i++) {
+			if (SnapshotStore.isReference(locations[i])) {
+				// stored files are named by the SHA-256 of their content, which
+				// is the fingerprint of a file
+				String hash = SnapshotStore.getHash(build, locations[i]);
+				if (hash == null) {
+					return null;
+				}
+				fingerprints.set(i, hash);
+			}
+		}
+
+		MessageDigest md = InputFingerprint.newDigest();
+		md.update(CliToolchainCache.getDigest(new File(config.getLibs())).getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		md.update(action.getBytes(StandardCharsets.UTF_8));
+		for (int i = 0; i < inputs.length; i++) {
+			if (inputs[i] != null && fingerprints.get(i) == null) {
+				// CLI reports the missing input
+				return null;
+			}
+			md.update((byte) 0);
+			md.update(String.valueOf(fingerprints.get(i)).getBytes(StandardCharsets.UTF_8));
+		}
+		return Util.toHexString(md.digest());
+	}
+
+	/**
+	 * Links cached output of a compare into the workspace.
+	 *
+	 * @param build
+	 *            - build running the compare
+	 * @param key
+	 *            - key from {@link #getKey}
+	 * @param output
+	 *            - temporary output folder of the compare
+	 * @param listener
+	 *            - build listener
+	 * @return <tt>true</tt> if the output was restored from the cache
+	 * @throws InterruptedException
+	 *             - if restoring was interrupted
+	 */
+	public static boolean restore(AbstractBuild<?, ?> build, String key, FilePath output, TaskListener listener)
+			throws InterruptedException {
+		FilePath entry = getCacheRoot(build).child(key);
+		try {
+			String origin = entry.act(new RestoreCallable(output.getRemote()));
+			if (origin == null) {
+				listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+						"CompareCacheMiss", key).toString());
+				return false;
+			}
+			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"CompareCacheHit", origin, entry).toString());
+			return true;
+		} catch (IOException e) {
+			// entry evicted meanwhile, run the compare
+			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"CompareCacheMiss", key).toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Stores output of a successful compare and evicts least recently used
+	 * outputs over the configured size.
+	 *
+	 * @param build
+	 *            - build running the compare
+	 * @param key
+	 *            - key from {@link #getKey}
+	 * @param output
+	 *            - temporary output folder of the compare
+	 * @param listener
+	 *            - build listener
+	 * @throws InterruptedException
+	 *             - if storing was interrupted
+	 */
+	public static void store(AbstractBuild<?, ?> build, String key, FilePath output, TaskListener listener)
+			throws InterruptedException {
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+		long maxSize = config != null ? config.getCompareCacheSize() * 1024L * 1024L : 0;
+		FilePath cacheRoot = getCacheRoot(build);
+		try {
+			List<String> evicted = cacheRoot
+					.act(new StoreCallable(key, output.getRemote(), build.getFullDisplayName(), maxSize));
+			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"CompareCacheStored", cacheRoot.child(key)).toString());
+			for (String name : evicted) {
+				listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+						"CompareCacheEvicted", cacheRoot.child(name)).toString());
+			}
+		} catch (IOException e) {
+			// the cache only saves time, the build goes on without it
+			e.printStackTrace(listener.error(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"CompareCacheFailed", cacheRoot.child(key)).toString()));
+		}
+	}
+
+	private static FilePath getCacheRoot(AbstractBuild<?, ?> build) {
+		Node node = build.getBuiltOn();
+		FilePath root = node != null ? node.getRootPath() : null;
+		if (root == null) {
+			root = build.getWorkspace();
+		}
+		return root.child(CACHE_DIR);
+	}
+
+	private static long readSize(File entry) {
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(new File(entry, SIZE).toPath()),
+					StandardCharsets.UTF_8).trim());
+		} catch (IOException | NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Must be called with the cache lock held. Moves least recently used
+	 * entries out of the way so that they can be deleted without holding the
+	 * lock.
+	 */
+	private static List<File> evict(File cacheRoot, String current, long maxSize) {
+		File[] files = cacheRoot.listFiles();
+		if (files == null) {
+			return Collections.emptyList();
+		}
+		long now = System.currentTimeMillis();
+		List<File> entries = new ArrayList<>();
+		List<File> doomed = new ArrayList<>();
+		for (File file : files) {
+			String name = file.getName();
+			if (!file.isDirectory()) {
+				continue;
+			}
+			if (name.contains(STAGING_SUFFIX) || name.contains(EVICTED_SUFFIX)) {
+				if (now - file.lastModified() > STALE_MILLIS) {
+					doomed.add(file);
+				}
+				continue;
+			}
+			entries.add(file);
+		}
+
+		Collections.sort(entries, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		long total = 0;
+		for (File entry : entries) {
+			total += readSize(entry);
+			if (total <= maxSize || entry.getName().equals(current)) {
+				continue;
+			}
+			File evicted = new File(cacheRoot, entry.getName() + EVICTED_SUFFIX + UUID.randomUUID());
+			if (entry.renameTo(evicted)) {
+				doomed.add(evicted);
+			}
+		}
+		return doomed;
+	}
+
+	/**
+	 * Links cached output into the workspace and marks the entry as recently
+	 * used. Returns name of the build that produced the output, or
+	 * <tt>null</tt> if the key is not cached.
+	 */
+	private static class RestoreCallable extends MasterToSlaveFileCallable<String> {
+		private static final long serialVersionUID = 1L;
+		private final String output;
+
+		RestoreCallable(String output) {
+			this.output = output;
+		}
+
+		public String invoke(File entry, VirtualChannel channel) throws IOException, InterruptedException {
+			File origin = new File(entry, ORIGIN);
+			if (!origin.isFile()) {
+				return null;
+			}
+			entry.setLastModified(System.currentTimeMillis());
+			// output is never modified, links are safe
+			StagingCopier.copy(new File(entry, OUTPUT), new File(output), true);
+			return new String(Files.readAllBytes(origin.toPath()), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Copies output into a staging folder, renames it to the cache entry and
+	 * evicts entries over the size limit. Returns names of evicted entries.
+	 */
+	private static class StoreCallable extends MasterToSlaveFileCallable<List<String>> {
+		private static final long serialVersionUID = 1L;
+		private final String key;
+		private final String output;
+		private final String origin;
+		private final long maxSize;
+
+		StoreCallable(String key, String output, String origin, long maxSize) {
+			this.key = key;
+			this.output = output;
+			this.origin = origin;
+			this.maxSize = maxSize;
+		}
+
+		public List<String> invoke(File cacheRoot, VirtualChannel channel) throws IOException, InterruptedException {
+			if (!cacheRoot.isDirectory() && !cacheRoot.mkdirs()) {
+				throw new IOException("Unable to create " + cacheRoot.getPath());
+			}
+			File staging = new File(cacheRoot, key + STAGING_SUFFIX + UUID.randomUUID());
+			StagingCopier.Stats stats = StagingCopier.copy(new File(output), new File(staging, OUTPUT), true);
+			Files.write(new File(staging, SIZE).toPath(),
+					Long.toString(stats.getWritten() + stats.getLinked()).getBytes(StandardCharsets.UTF_8));
+			Files.write(new File(staging, ORIGIN).toPath(), origin.getBytes(StandardCharsets.UTF_8));
+
+			List<File> doomed;
+			synchronized (LOCAL_LOCK) {
+				try (RandomAccessFile lockFile = new RandomAccessFile(new File(cacheRoot, LOCK_FILE), "rw");
+						FileLock lock = lockFile.getChannel().lock()) {
+					File entry = new File(cacheRoot, key);
+					if (entry.exists() || !staging.renameTo(entry)) {
+						// stored by a concurrent build
+						Util.deleteRecursive(staging);
+					}
+					doomed = evict(cacheRoot, key, maxSize);
+				} catch (OverlappingFileLockException e) {
+					// held by another copy of the plugin in this JVM, reported
+					// as a cache failure
+					Util.deleteRecursive(staging);
+					throw new IOException(e);
+				}
+			}
+
+			List<String> evicted = new ArrayList<>();
+			for (File file : doomed) {
+				Util.deleteRecursive(file);
+				int suffix = file.getName().indexOf(EVICTED_SUFFIX);
+				if (suffix >= 0) {
+					evicted.add(file.getName().substring(0, suffix));
+				}
+			}
+			return evicted;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+/**
+ * Summary of a compare attached to the build, so that counts of differences
+ * can be read without loading the compare output or the report.
+ * <p>
+ * Counts are stored with the build. Compared objects are kept in a separate
+ * compressed index file in the build folder and loaded only when asked for.
+ */
+@ExportedBean
+public class CompareResultAction implements Action, RunAction2, Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private transient Run<?, ?> build;
+	private transient SoftReference<List<Item>> items;
+
+	private final String urlName;
+	private final String indexFileName;
+	private final Map<CompareStatus, Integer> counts;
+
+	public CompareResultAction(String urlName, String indexFileName, Map<CompareStatus, Integer> counts) {
+		this.urlName = urlName;
+		this.indexFileName = indexFileName;
+		this.counts = new EnumMap<>(counts);
+	}
+
+	public void onAttached(Run<?, ?> arg0) {
+		this.build = arg0;
+	}
+
+	public void onLoad(Run<?, ?> arg0) {
+		this.build = arg0;
+	}
+
+	public String getDisplayName() {
+		return "Compare result";
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return urlName;
+	}
+
+	public Api getApi() {
+		return new Api(this);
+	}
+
+	/**
+	 * @param status
+	 *            - result of comparing an object
+	 * @return number of objects with the result
+	 */
+	public int getCount(CompareStatus status) {
+		Integer count = counts.get(status);
+		return count != null ? count : 0;
+	}
+
+	@Exported
+	public int getDifferent() {
+		return getCount(CompareStatus.DIFFERENT);
+	}
+
+	@Exported
+	public int getOnlyInSource() {
+		return getCount(CompareStatus.ONLY_IN_SOURCE);
+	}
+
+	@Exported
+	public int getOnlyInTarget() {
+		return getCount(CompareStatus.ONLY_IN_TARGET);
+	}
+
+	@Exported
+	public int getMapped() {
+		return getCount(CompareStatus.MAPPED);
+	}
+
+	@Exported
+	public int getEqual() {
+		return getCount(CompareStatus.EQUAL);
+	}
+
+	/**
+	 * @return number of compared objects that are not equal
+	 */
+	@Exported
+	public int getChanged() {
+		return getDifferent() + getOnlyInSource() + getOnlyInTarget() + getMapped();
+	}
+
+	/**
+	 * @return compared objects in order of compare output
+	 * @throws IOException
+	 *             - if the index cannot be read
+	 */
+	public synchronized List<Item> getItems() throws IOException {
+		List<Item> result = items != null ? items.get() : null;
+		if (result == null) {
+			result = Collections.unmodifiableList(readIndex(new File(build.getRootDir(), indexFileName)));
+			items = new SoftReference<>(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes index of compared objects.
+	 *
+	 * @param file
+	 *            - index file in the build folder
+	 * @param size
+	 *            - number of compared objects
+	 * @param records
+	 *            - compared objects written by {@link #writeRecord},
+	 *            <tt>null</tt> if there are none
+	 * @throws IOException
+	 *             - if the index cannot be written
+	 */
+	static void writeIndex(File file, int size, InputStream records) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))))) {
+			out.writeInt(size);
+			if (records != null) {
+				IOUtils.copyLarge(records, out);
+			}
+		}
+	}
+
+	/**
+	 * Writes a single compared object of an index, so that the index can be
+	 * written while the compare output is read.
+	 *
+	 * @param out
+	 *            - records of the index
+	 * @param type
+	 *            - object type
+	 * @param name
+	 *            - object name
+	 * @param status
+	 *            - compare status
+	 * @throws IOException
+	 *             - if the record cannot be written
+	 */
+	static void writeRecord(DataOutput out, String type, String name, CompareStatus status) throws IOException {
+		out.writeUTF(status.name());
+		out.writeUTF(type);
+		out.writeUTF(name);
+	}
+
+	private static List<Item> readIndex(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			int size = in.readInt();
+			List<Item> items = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				CompareStatus status = CompareStatus.valueOf(in.readUTF());
+				items.add(new Item(in.readUTF(), in.readUTF(), status));
+			}
+			return items;
+		}
+	}
+
+	/**
+	 * Single compared object.
+	 */
+	public static class Item implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String type;
+		private final String name;
+		private final CompareStatus status;
+
+		public Item(String type, String name, CompareStatus status) {
+			this.type = type;
+			this.name = name;
+			this.status = status;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public CompareStatus getStatus() {
+			return status;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Reads compare output once, on the node it was produced on, and attaches
+ * {@link CompareResultAction} with its summary to the build.
+ * <p>
+ * The format of the compare output is not documented by the CLI. The parser
+ * assumes that every compared object is an element with the attributes
+ * <tt>status</tt>, <tt>type</tt> and <tt>name</tt>, the status being the name
+ * of a {@link CompareStatus}, and takes any element of any XML file in the
+ * output that has them. XML files of the output are streamed and each
+ * compared object is written to the index file on the node right away, so
+ * memory use only depends on the number of object types, not on the size of
+ * the compare. XML files without such elements are listed as warnings in the
+ * build log, so output of a CLI version that does not match the assumption
+ * shows up instead of an empty summary.
+ */
+public class CompareResultParser {
+
+	private static final String URL_NAME = "compareResult";
+	private static final String INDEX_FILE = "compare-result";
+	private static final String INDEX_EXTENSION = ".idx.gz";
+	private static final String RECORDS = "COMPARE_RESULT";
+
+	private static final String STATUS_ATTRIBUTE = "status";
+	private static final String TYPE_ATTRIBUTE = "type";
+	private static final String NAME_ATTRIBUTE = "name";
+
+	/**
+	 * Parses compare output and attaches its summary to the build. Failures
+	 * are only logged, the summary is not essential for the build.
+	 *
+	 * @param build
+	 *            - build running the compare
+	 * @param output
+	 *            - compare output folder
+	 * @param listener
+	 *            - build listener
+	 * @throws InterruptedException
+	 *             - if parsing was interrupted
+	 */
+	public static void attach(AbstractBuild<?, ?> build, FilePath output, BuildListener listener)
+			throws InterruptedException {
+		FilePath records = new FilePath(build.getWorkspace(), FileUtils.getTempName(RECORDS, build));
+		try {
+			Result result = output.act(new ParseCallable(records.getRemote()));
+			for (String skipped : result.skipped) {
+				listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+						"CompareResultFileSkipped", skipped).toString());
+			}
+			if (result.size == 0) {
+				listener.getLogger().println(
+						new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CompareResultNotFound")
+								.toString());
+				return;
+			}
+			try (InputStream in = records.read()) {
+				record(build, result, in, listener);
+			}
+		} catch (IOException e) {
+			e.printStackTrace(listener.error(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"CompareResultFailed", output).toString()));
+		} finally {
+			try {
+				records.delete();
+			} catch (IOException e) {
+				// left over file is removed by the workspace janitor
+			}
+		}
+	}
+
+	/**
+	 * Attaches result of a compare that was skipped because its inputs are
+	 * identical, so the build shows no differences.
+	 *
+	 * @param build
+	 *            - build running the compare
+	 * @param listener
+	 *            - build listener
+	 */
+	public static void attachIdentical(AbstractBuild<?, ?> build, BuildListener listener) {
+		try {
+			record(build, new Result(), null, listener);
+		} catch (IOException e) {
+			e.printStackTrace(listener.error(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"CompareResultFailed", build.getRootDir()).toString()));
+		}
+	}
+
+	private static void record(AbstractBuild<?, ?> build, Result result, InputStream records,
+			BuildListener listener) throws IOException {
+		int number = build.getActions(CompareResultAction.class).size() + 1;
+		String suffix = number > 1 ? Integer.toString(number) : "";
+		String indexFileName = INDEX_FILE + suffix + INDEX_EXTENSION;
+		CompareResultAction.writeIndex(new File(build.getRootDir(), indexFileName), result.size, records);
+		CompareResultAction action = new CompareResultAction(URL_NAME + suffix, indexFileName, result.counts);
+		build.addAction(action);
+		CompareTrendIndex.append(build, result.byType);
+
+		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+				"CompareResultSummary", action.getDifferent(), action.getOnlyInSource(), action.getOnlyInTarget(),
+				action.getMapped(), action.getEqual()).toString());
+	}
+
+	/**
+	 * Counts of compared objects found in compare output. The objects
+	 * themselves are written to the records file.
+	 */
+	private static class Result implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final Map<CompareStatus, Integer> counts = new EnumMap<>(CompareStatus.class);
+		private final Map<String, Map<CompareStatus, Integer>> byType = new TreeMap<>();
+		private final List<String> skipped = new ArrayList<>();
+		private int size;
+
+		void add(String type, CompareStatus status) {
+			size++;
+			increment(counts, status);
+			Map<CompareStatus, Integer> typeCounts = byType.get(type);
+			if (typeCounts == null) {
+				typeCounts = new EnumMap<>(CompareStatus.class);
+				byType.put(type, typeCounts);
+			}
+			increment(typeCounts, status);
+		}
+
+		private static void increment(Map<CompareStatus, Integer> counts, CompareStatus status) {
+			Integer count = counts.get(status);
+			counts.put(status, count != null ? count + 1 : 1);
+		}
+	}
+
+	private static class ParseCallable extends MasterToSlaveFileCallable<Result> {
+		private static final long serialVersionUID = 1L;
+		private final String records;
+
+		ParseCallable(String records) {
+			this.records = records;
+		}
+
+		public Result invoke(final File dir, VirtualChannel channel) throws IOException, InterruptedException {
+			final Result result = new Result();
+			if (!dir.exists()) {
+				// CLI failed before producing output
+				return result;
+			}
+			final XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(records)))) {
+				Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						if (file.getFileName().toString().toLowerCase(Locale.ENGLISH).endsWith(".xml")
+								&& !parse(factory, file, result, out)) {
+							result.skipped.add(dir.toPath().relativize(file).toString());
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+			return result;
+		}
+
+		/**
+		 * @return whether the file holds compared objects
+		 */
+		private static boolean parse(XMLInputFactory factory, Path file, Result result, DataOutputStream out)
+				throws IOException {
+			int found = 0;
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+				XMLStreamReader reader = factory.createXMLStreamReader(in);
+				try {
+					while (reader.hasNext()) {
+						if (reader.next() != XMLStreamReader.START_ELEMENT) {
+							continue;
+						}
+						String value = reader.getAttributeValue(null, STATUS_ATTRIBUTE);
+						CompareStatus status = value != null ? CompareStatus.parse(value) : null;
+						String type = reader.getAttributeValue(null, TYPE_ATTRIBUTE);
+						String name = reader.getAttributeValue(null, NAME_ATTRIBUTE);
+						if (status == null || type == null || name == null) {
+							continue;
+						}
+						CompareResultAction.writeRecord(out, type, name, status);
+						result.add(type, status);
+						found++;
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (XMLStreamException e) {
+				// not well-formed, listed as not a compare result
+			}
+			return found > 0;
+		}
+	}
+}
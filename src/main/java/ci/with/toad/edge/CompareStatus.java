@@ -0,0 +1,77 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.util.Locale;
+
+/**
+ * Enumeration of results of comparing a single database object
+ *
+ */
+public enum CompareStatus {
+	/**
+	 * Object exists on both sides and differs
+	 */
+	DIFFERENT("Different"),
+	/**
+	 * Object exists in source only
+	 */
+	ONLY_IN_SOURCE("Only in source"),
+	/**
+	 * Object exists in target only
+	 */
+	ONLY_IN_TARGET("Only in target"),
+	/**
+	 * Objects with different names were mapped to each other
+	 */
+	MAPPED("Mapped"),
+	/**
+	 * Object exists on both sides and is the same
+	 */
+	EQUAL("Equal");
+
+	private String displayName;
+
+	private CompareStatus(final String displayName) {
+		this.displayName = displayName;
+	}
+
+	/**
+	 * @return Display name for ui
+	 */
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	/**
+	 * Recognizes status written by the CLI, the name of the status such as
+	 * <tt>ONLY_IN_SOURCE</tt>. Case is ignored.
+	 *
+	 * @param value
+	 *            - status as written in compare output
+	 * @return status or <tt>null</tt> if the value is not a compare status
+	 */
+	public static CompareStatus parse(String value) {
+		String name = value.trim().toUpperCase(Locale.ENGLISH);
+		for (CompareStatus status : values()) {
+			if (status.name().equals(name)) {
+				return status;
+			}
+		}
+		return null;
+	}
+}
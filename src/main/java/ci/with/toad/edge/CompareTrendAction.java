@@ -0,0 +1,190 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.category.CategoryDataset;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.TransientProjectActionFactory;
+import hudson.util.ChartUtil;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+
+/**
+ * Job action plotting numbers of differences found by compares of the recent
+ * builds, read from {@link CompareTrendIndex}.
+ */
+public class CompareTrendAction implements Action {
+
+	/**
+	 * Maximum number of builds in the graph.
+	 */
+	private static final int MAX_BUILDS = 100;
+
+	private static final CompareStatus[] PLOTTED = { CompareStatus.DIFFERENT, CompareStatus.ONLY_IN_SOURCE,
+			CompareStatus.ONLY_IN_TARGET, CompareStatus.MAPPED };
+
+	private final AbstractProject<?, ?> project;
+
+	public CompareTrendAction(AbstractProject<?, ?> project) {
+		this.project = project;
+	}
+
+	public AbstractProject<?, ?> getProject() {
+		return project;
+	}
+
+	public String getDisplayName() {
+		return "Compare trend";
+	}
+
+	public String getIconFileName() {
+		return "graph.gif";
+	}
+
+	public String getUrlName() {
+		return "compareTrend";
+	}
+
+	/**
+	 * @return object types that can be plotted separately
+	 * @throws IOException
+	 *             - if the index cannot be read
+	 */
+	public Set<String> getTypes() throws IOException {
+		return CompareTrendIndex.get(project).getTypes();
+	}
+
+	/**
+	 * Draws the trend. Optional <tt>type</tt> parameter limits the graph to a
+	 * single object type.
+	 *
+	 * @param req
+	 *            Request
+	 * @param rsp
+	 *            Response
+	 * @throws IOException
+	 *             IOException
+	 */
+	public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		if (ChartUtil.awtProblemCause != null) {
+			rsp.sendRedirect2(req.getContextPath() + "/images/headless.png");
+			return;
+		}
+		final String type = Util.fixEmpty(req.getParameter("type"));
+		final CompareTrendIndex index = CompareTrendIndex.get(project);
+		new Graph(index.getLastModified(), 500, 200) {
+			@Override
+			protected JFreeChart createGraph() {
+				DataSetBuilder<String, BuildLabel> data = new DataSetBuilder<>();
+				for (CompareTrendIndex.BuildEntry build : index.getBuilds(project, MAX_BUILDS)) {
+					BuildLabel label = new BuildLabel(build.getNumber());
+					for (CompareStatus status : PLOTTED) {
+						data.add(build.getCount(type, status), status.getDisplayName(), label);
+					}
+				}
+				return createChart(data.build());
+			}
+		}.doPng(req, rsp);
+	}
+
+	private static JFreeChart createChart(CategoryDataset dataset) {
+		JFreeChart chart = ChartFactory.createLineChart(null, null, "objects", dataset, PlotOrientation.VERTICAL,
+				true, true, false);
+		chart.setBackgroundPaint(Color.white);
+
+		CategoryPlot plot = chart.getCategoryPlot();
+		plot.setBackgroundPaint(Color.white);
+		plot.setOutlinePaint(null);
+		plot.setRangeGridlinesVisible(true);
+		plot.setRangeGridlinePaint(Color.black);
+
+		CategoryAxis domainAxis = plot.getDomainAxis();
+		domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+		domainAxis.setLowerMargin(0.0);
+		domainAxis.setUpperMargin(0.0);
+		domainAxis.setCategoryMargin(0.0);
+
+		NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
+		rangeAxis.setStandardTickUnits(NumberAxis.createIntegerTickUnits());
+		ChartUtil.adjustChebyshev(dataset, rangeAxis);
+		return chart;
+	}
+
+	/**
+	 * Category of the graph. Unlike the labels of Jenkins core it does not
+	 * need the build to be loaded.
+	 */
+	private static class BuildLabel implements Comparable<BuildLabel> {
+		private final int number;
+
+		BuildLabel(int number) {
+			this.number = number;
+		}
+
+		public int compareTo(BuildLabel o) {
+			return Integer.compare(number, o.number);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof BuildLabel && ((BuildLabel) o).number == number;
+		}
+
+		@Override
+		public int hashCode() {
+			return number;
+		}
+
+		@Override
+		public String toString() {
+			return "#" + number;
+		}
+	}
+
+	/**
+	 * Adds the trend to jobs that ran a compare.
+	 */
+	@Extension
+	public static class Factory extends TransientProjectActionFactory {
+		@Override
+		public Collection<? extends Action> createFor(@SuppressWarnings("rawtypes") AbstractProject target) {
+			if (!CompareTrendIndex.getFile(target).isFile()) {
+				return Collections.emptyList();
+			}
+			return Collections.singletonList(new CompareTrendAction(target));
+		}
+	}
+}
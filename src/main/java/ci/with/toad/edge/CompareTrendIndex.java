@@ -0,0 +1,275 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Job;
+
+/**
+ * Append-only index of compare results of all builds of a job, stored in the
+ * job folder.
+ * <p>
+ * Each compare appends one line per object type with the number of objects of
+ * each status. Readers keep the parsed index in memory and only read lines
+ * appended since the last read, so a trend never loads old builds or their
+ * reports.
+ */
+public class CompareTrendIndex {
+
+	static final String FILE_NAME = "compare-trend.idx";
+
+	private static final Map<File, CompareTrendIndex> CACHE = Collections
+			.synchronizedMap(new HashMap<File, CompareTrendIndex>());
+
+	private final File file;
+	private final NavigableMap<Integer, BuildEntry> builds = new TreeMap<>();
+	private long offset;
+	private long lastModified;
+
+	private CompareTrendIndex(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param job
+	 *            - job with compare results
+	 * @return index file of the job
+	 */
+	public static File getFile(Job<?, ?> job) {
+		return new File(job.getRootDir(), FILE_NAME);
+	}
+
+	/**
+	 * Gets index of the job, reading lines appended since the last call.
+	 *
+	 * @param job
+	 *            - job with compare results
+	 * @return up to date index
+	 * @throws IOException
+	 *             - if the index cannot be read
+	 */
+	public static CompareTrendIndex get(Job<?, ?> job) throws IOException {
+		File file = getFile(job);
+		CompareTrendIndex index;
+		synchronized (CACHE) {
+			index = CACHE.get(file);
+			if (index == null) {
+				index = new CompareTrendIndex(file);
+				CACHE.put(file, index);
+			}
+		}
+		index.refresh();
+		return index;
+	}
+
+	/**
+	 * Appends compare result of a build to the index of its job.
+	 *
+	 * @param build
+	 *            - build running the compare
+	 * @param byType
+	 *            - number of compared objects of each status by object type
+	 * @throws IOException
+	 *             - if the index cannot be written
+	 */
+	public static void append(AbstractBuild<?, ?> build, Map<String, Map<CompareStatus, Integer>> byType)
+			throws IOException {
+		StringBuilder lines = new StringBuilder();
+		if (byType.isEmpty()) {
+			// no differences, the build still belongs to the trend
+			lines.append(build.getNumber()).append('\t').append(build.getTimeInMillis()).append('\n');
+		}
+		for (Map.Entry<String, Map<CompareStatus, Integer>> type : byType.entrySet()) {
+			lines.append(build.getNumber()).append('\t').append(build.getTimeInMillis()).append('\t')
+					.append(type.getKey().replaceAll("[\\t\\r\\n]", " "));
+			for (Map.Entry<CompareStatus, Integer> count : type.getValue().entrySet()) {
+				lines.append('\t').append(count.getKey().name()).append('=').append(count.getValue());
+			}
+			lines.append('\n');
+		}
+
+		File file = getFile(build.getParent());
+		// single write, so lines of concurrent builds are never interleaved
+		synchronized (CACHE) {
+			try (OutputStream out = new FileOutputStream(file, true)) {
+				out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	private synchronized void refresh() throws IOException {
+		if (!file.isFile()) {
+			builds.clear();
+			offset = 0;
+			lastModified = 0;
+			return;
+		}
+		if (file.length() < offset) {
+			// index was replaced, read it again
+			builds.clear();
+			offset = 0;
+		}
+		if (file.length() == offset) {
+			return;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			raf.seek(offset);
+			byte[] data = new byte[(int) (raf.length() - offset)];
+			raf.readFully(data);
+			int start = 0;
+			for (int i = 0; i < data.length; i++) {
+				if (data[i] == '\n') {
+					parseLine(new String(data, start, i - start, StandardCharsets.UTF_8));
+					start = i + 1;
+				}
+			}
+			// incomplete last line is read again once it is finished
+			offset += start;
+		}
+		lastModified = file.lastModified();
+	}
+
+	private void parseLine(String line) {
+		String[] fields = line.split("\t");
+		if (fields.length < 2) {
+			return;
+		}
+		try {
+			int number = Integer.parseInt(fields[0]);
+			BuildEntry build = builds.get(number);
+			if (build == null) {
+				build = new BuildEntry(number, Long.parseLong(fields[1]));
+				builds.put(number, build);
+			}
+			for (int i = 3; i < fields.length; i++) {
+				int separator = fields[i].indexOf('=');
+				CompareStatus status = CompareStatus.valueOf(fields[i].substring(0, separator));
+				build.add(fields[2], status, Integer.parseInt(fields[i].substring(separator + 1)));
+			}
+		} catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+			// damaged line, e.g. written by a crashed controller
+		}
+	}
+
+	/**
+	 * @return time the index was last changed
+	 */
+	public synchronized long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @param job
+	 *            - job of the index, used to skip deleted builds
+	 * @param max
+	 *            - maximum number of builds
+	 * @return most recent builds with compare results, oldest first
+	 */
+	public synchronized List<BuildEntry> getBuilds(Job<?, ?> job, int max) {
+		List<BuildEntry> result = new ArrayList<>();
+		for (BuildEntry build : builds.descendingMap().values()) {
+			if (result.size() == max) {
+				break;
+			}
+			// checking the folder does not load the build
+			if (new File(job.getBuildDir(), Integer.toString(build.number)).exists()) {
+				result.add(build);
+			}
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	/**
+	 * @return object types found in any of the builds
+	 */
+	public synchronized Set<String> getTypes() {
+		Set<String> types = new TreeSet<>();
+		for (BuildEntry build : builds.values()) {
+			types.addAll(build.counts.keySet());
+		}
+		return types;
+	}
+
+	/**
+	 * Compare results of a single build.
+	 */
+	public static class BuildEntry {
+		private final int number;
+		private final long timestamp;
+		private final Map<String, Map<CompareStatus, Integer>> counts = new HashMap<>();
+
+		BuildEntry(int number, long timestamp) {
+			this.number = number;
+			this.timestamp = timestamp;
+		}
+
+		void add(String type, CompareStatus status, int count) {
+			Map<CompareStatus, Integer> typeCounts = counts.get(type);
+			if (typeCounts == null) {
+				typeCounts = new EnumMap<>(CompareStatus.class);
+				counts.put(type, typeCounts);
+			}
+			Integer current = typeCounts.get(status);
+			// several compares of one build are added up
+			typeCounts.put(status, current != null ? current + count : count);
+		}
+
+		public int getNumber() {
+			return number;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @param type
+		 *            - object type or <tt>null</tt> for all types
+		 * @param status
+		 *            - result of comparing an object
+		 * @return number of objects
+		 */
+		public int getCount(String type, CompareStatus status) {
+			int total = 0;
+			for (Map.Entry<String, Map<CompareStatus, Integer>> typeCounts : counts.entrySet()) {
+				if (type == null || type.equals(typeCounts.getKey())) {
+					Integer count = typeCounts.getValue().get(status);
+					total += count != null ? count : 0;
+				}
+			}
+			return total;
+		}
+	}
+}
@@ -24,10 +24,9 @@ import java.util.Map;
 import org.jvnet.localizer.Localizable;
 import org.jvnet.localizer.ResourceBundleHolder;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
-import com.google.common.io.Files;
-
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -50,6 +49,8 @@ public class CompareWithBaselineBuilder extends Builder {
 	private String srcInputFileOrFolder;
 	private String tgtInputFileOrFolder;
 	private String configFile;
+	private boolean useCompareCache;
+	private JvmProfile jvmProfile;
 	private static final String SOURCE = "IN_SOURCE";
 	private static final String TARGET = "IN_TARGET";
 	private static final String CONFIG = "CONFIG";
@@ -97,37 +98,42 @@ public class CompareWithBaselineBuilder extends Builder {
 	public String getConfigFile() {
 		return configFile;
 	}
-	
-	private FilePath getTmpInSource(AbstractBuild<?, ?> build) throws IOException, InterruptedException {
-		FilePath sourceInput = FileUtils.getFilePath(build, srcInputFileOrFolder);
-		if (sourceInput.isDirectory()) {
-			return new FilePath(build.getWorkspace(), SOURCE + build.number);
-		}
-		return new FilePath(build.getWorkspace(), SOURCE + build.number + "." + Files.getFileExtension(sourceInput.getName()));
+
+	/**
+	 * @return whether output of an earlier compare with identical inputs is
+	 *         reused. used from the <tt>config.jelly</tt> to display on build
+	 *         step.
+	 */
+	public boolean isUseCompareCache() {
+		return useCompareCache;
 	}
-	
-	private FilePath getTmpInTarget(AbstractBuild<?, ?> build) throws IOException, InterruptedException {
-		FilePath targetInput = FileUtils.getFilePath(build, tgtInputFileOrFolder);
-		if (targetInput.isDirectory()) {
-			return new FilePath(build.getWorkspace(), TARGET + build.number);
-		}
-		return new FilePath(build.getWorkspace(), TARGET + build.number + "." + Files.getFileExtension(targetInput.getName()));
+
+	@DataBoundSetter
+	public void setUseCompareCache(boolean useCompareCache) {
+		this.useCompareCache = useCompareCache;
 	}
 	
-	private FilePath getTmpOutput(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), TMP_OUTPUT + build.number);
+	/**
+	 * @return JVM profile of the CLI, <tt>null</tt> for the profile of the
+	 *         global configuration. used from the <tt>config.jelly</tt> to
+	 *         display on build step.
+	 */
+	public JvmProfile getJvmProfile() {
+		return jvmProfile;
 	}
-	
-	private FilePath getTmpConfig(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), CONFIG + build.number);
+
+	@DataBoundSetter
+	public void setJvmProfile(JvmProfile jvmProfile) {
+		this.jvmProfile = jvmProfile;
 	}
 
+	private FilePath getTmpOutput(AbstractBuild<?, ?> build) {
+		return new FilePath(build.getWorkspace(), FileUtils.getTempName(TMP_OUTPUT, build));
+	}
+	
 	@Override
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
 			throws IOException, InterruptedException {
-		System.setOut(listener.getLogger());
-		System.setErr(listener.getLogger());
-
 		FormValidation checkValidation = FormValidationUtil.restrictLocation(srcInputFileOrFolder, build);
 		if(checkValidation != FormValidation.ok()) {
 			throw new Error(checkValidation.getMessage());
@@ -141,116 +147,65 @@ public class CompareWithBaselineBuilder extends Builder {
 			throw new Error(checkValidationConfig.getMessage());
 		}
 
-		copyBuildFiles(build, listener);
-		ensureTmpOutputFolder(build, listener);
-
-		Map<String, String> arguments = new HashMap<>();
-		arguments.put("-in_source", getTmpInSource(build).toURI().getPath());
-		arguments.put("-in_target", getTmpInTarget(build).toURI().getPath());
-		arguments.put("-out", getTmpOutput(build).toURI().getPath());
-		if (configFile != null && !configFile.isEmpty()) {
-			arguments.put("-settings", getTmpConfig(build).toURI().getPath());
-		}
-		arguments.put("-compare", "");
-		arguments.put("-fail_on_diff", "");
+		InputStager stager = new InputStager(build, listener);
+		try {
+			InputStager.Staged output = stager.addOutput(getTmpOutput(build), true);
+			FilePath sourceInput = FileUtils.getFilePath(build, srcInputFileOrFolder);
+			FilePath targetInput = FileUtils.getFilePath(build, tgtInputFileOrFolder);
+			if (NoDifferences.skipCompare(build, sourceInput, targetInput, getTmpOutput(build), listener)) {
+				// nothing can differ, no need to launch the CLI
+				copyOutputFromTmp(build, listener);
+				return true;
+			}
 
-		boolean result = (ProcessLauncher.exec(arguments, build, launcher, listener) == 0);
+			String cacheKey = useCompareCache ? CompareCache.getKey(build, listener, "-compare -fail_on_diff",
+					srcInputFileOrFolder, tgtInputFileOrFolder, configFile) : null;
+
+			boolean result;
+			if (cacheKey != null && CompareCache.restore(build, cacheKey, getTmpOutput(build), listener)) {
+				result = true;
+			} else {
+				InputStager.Staged source = stager.add(srcInputFileOrFolder, FileUtils.getTempName(SOURCE, build));
+				InputStager.Staged target = stager.add(tgtInputFileOrFolder, FileUtils.getTempName(TARGET, build));
+				InputStager.Staged config = null;
+				if (configFile != null && !configFile.isEmpty()) {
+					config = stager.add(configFile, FileUtils.getTempName(CONFIG, build), false);
+				}
+				stager.stage();
+
+				Map<String, String> arguments = new HashMap<>();
+				arguments.put("-in_source", source.getPath());
+				arguments.put("-in_target", target.getPath());
+				arguments.put("-out", output.getPath());
+				if (config != null) {
+					arguments.put("-settings", config.getPath());
+				}
+				arguments.put("-compare", "");
+				arguments.put("-fail_on_diff", "");
+
+				result = (ProcessLauncher.exec(arguments, build, launcher, listener, jvmProfile) == 0);
+				if (cacheKey != null && result) {
+					CompareCache.store(build, cacheKey, getTmpOutput(build), listener);
+				}
+			}
 
-		copyOutputFromTmp(build, listener);
-		deleteBuildFiles(build, listener);
+			CompareResultParser.attach(build, getTmpOutput(build), listener);
+			copyOutputFromTmp(build, listener);
 
-		return result;
+			return result;
+		} finally {
+			stager.cleanup();
+		}
 	}
 
 	private void copyOutputFromTmp(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
 		FilePath tmpOutput = getTmpOutput(build);
 		FilePath output = FileUtils.getFilePath(build, outputFolder);
-		if (!output.exists()) {
-			output.mkdirs();
-		}
 		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", tmpOutput, output).toString());		
-		tmpOutput.copyRecursiveTo(output);
+		StagingCopier.publish(tmpOutput, output);
 		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
 	}
 
-	private void ensureTmpOutputFolder(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
-		FilePath tmpOutput = getTmpOutput(build);
-
-		if (!tmpOutput.exists()) {
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CreatingTmpFolder", tmpOutput).toString());		
-			tmpOutput.mkdirs();
-		}
-	}
-
-	private void copyBuildFiles(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
-		FilePath sourceInput = FileUtils.getFilePath(build, srcInputFileOrFolder);
-		FilePath targetInput = FileUtils.getFilePath(build, tgtInputFileOrFolder);
-		FilePath config = FileUtils.getFilePath(build, configFile);
-
-		if (sourceInput.isDirectory()) {
-			FilePath workspaceSource = getTmpInSource(build);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", sourceInput, workspaceSource).toString());		
-			sourceInput.copyRecursiveTo(workspaceSource);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),"CopyingFinished").toString());
-		} else {
-			FilePath workspaceSource = getTmpInSource(build);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", sourceInput, workspaceSource).toString());	
-			sourceInput.copyTo(workspaceSource);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),"CopyingFinished").toString());
-		}
-		
-		if (targetInput.isDirectory()) {
-			FilePath workspaceTarget = getTmpInTarget(build);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", targetInput, workspaceTarget).toString());	
-			targetInput.copyRecursiveTo(workspaceTarget);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),"CopyingFinished").toString());
-		} else {
-			FilePath workspaceTarget = getTmpInTarget(build);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", targetInput, workspaceTarget).toString());	
-			targetInput.copyTo(workspaceTarget);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),"CopyingFinished").toString());
-		}
-		
-		if (configFile != null && !configFile.isEmpty()) {
-			FilePath workspaceConfig = getTmpConfig(build);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", config, workspaceConfig).toString());
-			config.copyTo(workspaceConfig);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),"CopyingFinished").toString());
-		}
-	}
-
-	private void deleteBuildFiles(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
-		FilePath sourceInput = getTmpInSource(build);
-		FilePath targetInput = getTmpInTarget(build);
-		FilePath config = getTmpConfig(build);
-
-		if (sourceInput.isDirectory()) {
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", sourceInput).toString());	
-			sourceInput.deleteRecursive();
-		} else {
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", sourceInput).toString());
-			sourceInput.delete();
-		}
-
-		if (targetInput.isDirectory()) {
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", targetInput).toString());
-			targetInput.deleteRecursive();
-		} else {
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", targetInput).toString());
-			targetInput.delete();
-		}
-		
-		if (config.exists()) {
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", config).toString());
-			config.delete();
-		}
-		
-		FilePath output = getTmpOutput(build);
-
-		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", output).toString());
-		output.deleteRecursive();
-	}
-
 	// Overridden for better type safety.
 	// If your plugin doesn't really define any property on Descriptor,
 	// you don't have to do this.
@@ -23,10 +23,10 @@ import java.util.Map;
 import org.jvnet.localizer.Localizable;
 import org.jvnet.localizer.ResourceBundleHolder;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import hudson.Extension;
-import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
@@ -45,6 +45,7 @@ public class DeployScriptBuilder extends Builder {
 
 	private String out;
 	private String in;
+	private JvmProfile jvmProfile;
 	private static final String IN = "IN";
 	private static final String OUT = "OUT";
 
@@ -73,20 +74,23 @@ public class DeployScriptBuilder extends Builder {
 	}
 	
 
-	private FilePath getTmpIn(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), IN + build.number);
+	/**
+	 * @return JVM profile of the CLI, <tt>null</tt> for the profile of the
+	 *         global configuration. used from the <tt>config.jelly</tt> to
+	 *         display on build step.
+	 */
+	public JvmProfile getJvmProfile() {
+		return jvmProfile;
 	}
 
-	private FilePath getTmpOut(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), OUT + build.number);
+	@DataBoundSetter
+	public void setJvmProfile(JvmProfile jvmProfile) {
+		this.jvmProfile = jvmProfile;
 	}
 
 	@Override
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
 			throws IOException, InterruptedException {
-		System.setOut(listener.getLogger());
-		System.setErr(listener.getLogger());
-
 		FormValidation checkValidation = FormValidationUtil.restrictLocation(in, build);
 		if( checkValidation != FormValidation.ok()) {
 			throw new Error(checkValidation.getMessage());
@@ -96,53 +100,23 @@ public class DeployScriptBuilder extends Builder {
 			throw new Error(checkValidation.getMessage());
 		}
 
-		copyBuildFiles(build, listener);
-
-		Map<String, String> arguments = new HashMap<>();
-		arguments.put("-in", getTmpIn(build).toURI().getPath());
-		arguments.put("-out", getTmpOut(build).toURI().getPath());
-		arguments.put("-deploy", "");
-
-		boolean result = (ProcessLauncher.exec(arguments, build, launcher, listener) == 0);
+		InputStager stager = new InputStager(build, listener);
+		try {
+			InputStager.Staged targetConnection = stager.add(out, FileUtils.getTempName(OUT, build), false);
+			InputStager.Staged input = stager.add(in, FileUtils.getTempName(IN, build), false);
+			stager.stage();
 
-		deleteBuildFiles(build, listener);
+			Map<String, String> arguments = new HashMap<>();
+			arguments.put("-in", input.getPath());
+			arguments.put("-out", targetConnection.getPath());
+			arguments.put("-deploy", "");
 
-		return result;
-	}
-
-	private void copyBuildFiles(AbstractBuild<?, ?> build, BuildListener listener)
-			throws IOException, InterruptedException {
-		FilePath input = FileUtils.getFilePath(build, in);
-		FilePath targetConnection = FileUtils.getFilePath(build, out);
-
-		FilePath workspaceTarget = getTmpOut(build);
-		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY",
-				targetConnection, workspaceTarget).toString());
-		targetConnection.copyTo(workspaceTarget);
-		listener.getLogger().println(
-				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
-		FilePath workspaceInput = getTmpIn(build);
-		listener.getLogger().println(
-				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", input, workspaceInput)
-						.toString());
-		input.copyTo(workspaceInput);
-		listener.getLogger().println(
-				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
-	}
+			boolean result = (ProcessLauncher.exec(arguments, build, launcher, listener, jvmProfile) == 0);
 
-	private void deleteBuildFiles(AbstractBuild<?, ?> build, BuildListener listener)
-			throws IOException, InterruptedException {
-		FilePath workspaceInput = getTmpIn(build);
-		FilePath targetConnection = getTmpOut(build);
-
-		listener.getLogger().println(
-				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", targetConnection)
-						.toString());
-		targetConnection.delete();
-		listener.getLogger()
-				.println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", workspaceInput)
-						.toString());
-		workspaceInput.delete();
+			return result;
+		} finally {
+			stager.cleanup();
+		}
 	}
 
 	// Overridden for better type safety.
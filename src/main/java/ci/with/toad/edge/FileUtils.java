@@ -26,8 +26,30 @@ public class FileUtils {
 
 	public static final String WORKSPACE_VAR = "${WORKSPACE}";
 	public static final String JOB_ROOT_DIR_VAR = "${JOB_ROOT_DIR}";
+
+	/**
+	 * Prefix of temporary files and folders of build steps in workspaces, so
+	 * that they can be told apart from files of the job.
+	 */
+	public static final String TEMP_PREFIX = "TOAD_EDGE_";
+
+	/**
+	 * @param name
+	 *            - kind of the temporary file or folder, e.g. <tt>INPUT</tt>
+	 * @param build
+	 *            - build run
+	 * @return name of a temporary file or folder of a build step in the
+	 *         workspace
+	 */
+	public static String getTempName(String name, AbstractBuild<?, ?> build) {
+		return TEMP_PREFIX + name + build.number;
+	}
 	
 	public static FilePath getFilePath(AbstractBuild<?, ?> build, String path) {
+		if (SnapshotStore.isReference(path)) {
+			return SnapshotStore.resolve(build, path);
+		}
+
 		if (path.startsWith(WORKSPACE_VAR)) {
 			return new FilePath(build.getWorkspace(), getRelativePath(path.substring(WORKSPACE_VAR.length())));
 		}
@@ -53,6 +53,15 @@ public class FormValidationUtil {
 	@Nonnull
 	public static FormValidation restrictLocation(String folderPath, AbstractBuild<?, ?> build) throws IOException, InterruptedException {
         final FilePath workspaceDir = build.getWorkspace();
+		if (SnapshotStore.isReference(folderPath)) {
+			// read-only file of the snapshot store, staged by InputStager;
+			// only names of the folder of the job are visible
+			if (SnapshotStore.getHash(build, folderPath) == null) {
+				return FormValidation.error(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+						"SnapshotStoreNotFound", folderPath).toString());
+			}
+			return FormValidation.ok();
+		}
 		final FilePath inputDir = FileUtils.getFilePath(build,folderPath);
 		if(workspaceDir == null) {
 			return FormValidation.ok();
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+
+/**
+ * Enumeration of garbage collectors the CLI process can run with
+ *
+ */
+public enum GarbageCollector {
+	/**
+	 * Collector chosen by the JVM
+	 */
+	DEFAULT("JVM default", null),
+	/**
+	 * Garbage-first collector
+	 */
+	G1("G1", "-XX:+UseG1GC"),
+	/**
+	 * Throughput collector, shortest total run time for batch work
+	 */
+	PARALLEL("Parallel", "-XX:+UseParallelGC"),
+	/**
+	 * Single-threaded collector, least overhead for small heaps
+	 */
+	SERIAL("Serial", "-XX:+UseSerialGC");
+
+	private String displayName;
+	private String option;
+
+	private GarbageCollector(final String displayName, final String option) {
+		this.displayName = displayName;
+		this.option = option;
+	}
+
+	/**
+	 * @return Display name for ui
+	 */
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	/**
+	 * @return JVM option selecting the collector, <tt>null</tt> for the JVM
+	 *         default
+	 */
+	public String getOption() {
+		return option;
+	}
+}
@@ -23,6 +23,7 @@ import java.util.Map;
 import org.jvnet.localizer.Localizable;
 import org.jvnet.localizer.ResourceBundleHolder;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import hudson.Extension;
@@ -45,6 +46,7 @@ public class GenerateChangeScriptBuilder extends Builder {
 
 	private String in;
 	private String out;
+	private JvmProfile jvmProfile;
 	private static final String INPUT = "INPUT";
 	private static final String OUTPUT = "OUTPUT";
 	
@@ -70,47 +72,60 @@ public class GenerateChangeScriptBuilder extends Builder {
 		return in;
 	}
 	
-	private FilePath getTmpIn(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), INPUT + build.number);
+	/**
+	 * @return JVM profile of the CLI, <tt>null</tt> for the profile of the
+	 *         global configuration. used from the <tt>config.jelly</tt> to
+	 *         display on build step.
+	 */
+	public JvmProfile getJvmProfile() {
+		return jvmProfile;
 	}
-	
+
+	@DataBoundSetter
+	public void setJvmProfile(JvmProfile jvmProfile) {
+		this.jvmProfile = jvmProfile;
+	}
+
 	private FilePath getTmpOut(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), OUTPUT + build.number + ".sql");
+		return new FilePath(build.getWorkspace(), FileUtils.getTempName(OUTPUT, build) + ".sql");
 	}
 
 	@Override
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
-		System.setOut(listener.getLogger());
-		System.setErr(listener.getLogger());
-
 		FormValidation checkValidation = FormValidationUtil.restrictLocation(in, build);
 		if(checkValidation != FormValidation.ok()) {
 			throw new Error(checkValidation.getMessage());
 		}
 
-		copyBuildFiles(build, listener);
+		InputStager stager = new InputStager(build, listener);
+		try {
+			InputStager.Staged input = stager.add(in, FileUtils.getTempName(INPUT, build));
+			InputStager.Staged output = stager.addOutput(getTmpOut(build), false);
+			stager.stage();
+
+			// output of a compare by schema is scripted schema by schema
+			Boolean result = ShardedCompare.changeScript(build, launcher, listener, jvmProfile,
+					input.getFilePath(), output.getFilePath());
+			if (result == null && NoDifferences.isMarked(input.getFilePath())) {
+				NoDifferences.writeChangeScript(output.getFilePath(), listener);
+				result = true;
+			}
+			if (result == null) {
+				Map<String, String> arguments = new HashMap<>();
+				arguments.put("-in",
+						input.getPath());
+				arguments.put("-out", output.getPath());
+				arguments.put("-sql_change", "");
+
+				result = (ProcessLauncher.exec(arguments, build, launcher, listener, jvmProfile) == 0);
+			}
 
-		Map<String, String> arguments = new HashMap<>();
-		arguments.put("-in",
-				getTmpIn(build).toURI().getPath());
-		arguments.put("-out", getTmpOut(build).toURI().getPath());
-		arguments.put("-sql_change", "");
+			copyScriptToTargetLocation(build, listener);
 
-		boolean result = (ProcessLauncher.exec(arguments, build, launcher, listener) == 0);
-	
-		copyScriptToTargetLocation(build, listener);
-		deleteBuildFiles(build, listener);
-		
-		return result;
-	}
-	
-	private void copyBuildFiles(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
-		FilePath input = FileUtils.getFilePath(build, in);
-
-		FilePath workspaceInput = getTmpIn(build);
-		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", input, workspaceInput).toString());		
-		input.copyRecursiveTo(workspaceInput);
-		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
+			return result;
+		} finally {
+			stager.cleanup();
+		}
 	}
 	
 	private void copyScriptToTargetLocation(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
@@ -118,17 +133,10 @@ public class GenerateChangeScriptBuilder extends Builder {
 
 		FilePath targetOutput = FileUtils.getFilePath(build, out);
 		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", workspaceOutput, targetOutput).toString());
-		workspaceOutput.copyTo(targetOutput);
+		StagingCopier.publish(workspaceOutput, targetOutput);
 		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
 	}
 	
-	private void deleteBuildFiles(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
-		FilePath jobInput = getTmpIn(build);
-		
-		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", jobInput).toString());
-		jobInput.deleteRecursive();
-	}
-
 	// Overridden for better type safety.
 	// If your plugin doesn't really define any property on Descriptor,
 	// you don't have to do this.
@@ -23,10 +23,9 @@ import java.util.Map;
 import org.jvnet.localizer.Localizable;
 import org.jvnet.localizer.ResourceBundleHolder;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
-import com.google.common.io.Files;
-
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -47,6 +46,7 @@ public class GenerateCreateScriptBuilder extends Builder {
 
 	private String outputFile;
 	private String inputFileOrFolder;
+	private JvmProfile jvmProfile;
 	private static final String INPUT = "INPUT";
 	private static final String TMP_OUTPUT = "TMP_OUTPUT";
 
@@ -73,89 +73,61 @@ public class GenerateCreateScriptBuilder extends Builder {
 	}
 	
 	
-	private FilePath getTmpInput(AbstractBuild<?, ?> build) throws IOException, InterruptedException {
-		FilePath input = FileUtils.getFilePath(build, inputFileOrFolder);
-		if (input.isDirectory()) {
-			return new FilePath(build.getWorkspace(), INPUT + build.number);
-		}
-		return new FilePath(build.getWorkspace(), INPUT + build.number + "." + Files.getFileExtension(input.getName()));
+	/**
+	 * @return JVM profile of the CLI, <tt>null</tt> for the profile of the
+	 *         global configuration. used from the <tt>config.jelly</tt> to
+	 *         display on build step.
+	 */
+	public JvmProfile getJvmProfile() {
+		return jvmProfile;
+	}
+
+	@DataBoundSetter
+	public void setJvmProfile(JvmProfile jvmProfile) {
+		this.jvmProfile = jvmProfile;
 	}
 
 	private FilePath getTmpOutput(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), TMP_OUTPUT + build.number);
+		return new FilePath(build.getWorkspace(), FileUtils.getTempName(TMP_OUTPUT, build));
 	}
 
 	@Override
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
-		System.setOut(listener.getLogger());
-		System.setErr(listener.getLogger());
-
 		FormValidation checkValidation = FormValidationUtil.restrictLocation(inputFileOrFolder, build);
 		if(checkValidation != FormValidation.ok()){
 			throw new Error(checkValidation.getMessage());
 		}
 
-		copyBuildFiles(build, listener);
+		InputStager stager = new InputStager(build, listener);
+		try {
+			InputStager.Staged input = stager.add(inputFileOrFolder, FileUtils.getTempName(INPUT, build));
+			InputStager.Staged output = stager.addOutput(getTmpOutput(build), false);
+			stager.stage();
 
-		Map<String, String> arguments = new HashMap<>();
-		arguments.put("-in",
-				getTmpInput(build).toURI().getPath());
-		arguments.put("-out", getTmpOutput(build).toURI().getPath());
-		arguments.put("-sql_create", "");
+			Map<String, String> arguments = new HashMap<>();
+			arguments.put("-in",
+					input.getPath());
+			arguments.put("-out", output.getPath());
+			arguments.put("-sql_create", "");
 
-		boolean result = (ProcessLauncher.exec(arguments, build, launcher, listener) == 0);
-	
-		copyScriptToTargetLocation(build, listener);
-		deleteBuildFiles(build, listener);
-		
-		return result;
-	}
-	
-	private void copyBuildFiles(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
-		FilePath input = FileUtils.getFilePath(build, inputFileOrFolder);
-
-		if (input.isDirectory()) {
-			FilePath workspaceInput = getTmpInput(build);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", input, workspaceInput).toString());
-			input.copyRecursiveTo(workspaceInput);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),"CopyingFinished").toString());
-		} else {
-			FilePath workspaceInput = getTmpInput(build);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", input, workspaceInput).toString());
-			input.copyTo(workspaceInput);
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),"CopyingFinished").toString());
+			boolean result = (ProcessLauncher.exec(arguments, build, launcher, listener, jvmProfile) == 0);
+
+			copyScriptToTargetLocation(build, listener);
+
+			return result;
+		} finally {
+			stager.cleanup();
 		}
 	}
 	
 	private void copyScriptToTargetLocation(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
 		FilePath tmpOutput = getTmpOutput(build);
 		FilePath scriptFile = FileUtils.getFilePath(build, outputFile);
-		if (scriptFile.getParent() != null) {
-			scriptFile.getParent().mkdirs();
-		}
-		
 		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", tmpOutput, scriptFile).toString());
-		tmpOutput.copyTo(scriptFile);
+		StagingCopier.publish(tmpOutput, scriptFile);
 		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),"CopyingFinished").toString());
 	}
 	
-	private void deleteBuildFiles(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
-		FilePath jobInput = getTmpInput(build);
-		
-		if (jobInput.isDirectory()) {
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", jobInput).toString());
-			jobInput.deleteRecursive();
-		} else {
-			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", jobInput).toString());
-			jobInput.delete();
-		}
-		
-		FilePath output = getTmpOutput(build);
-
-		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", output).toString());
-		output.delete();
-	}
-
 	// Overridden for better type safety.
 	// If your plugin doesn't really define any property on Descriptor,
 	// you don't have to do this.
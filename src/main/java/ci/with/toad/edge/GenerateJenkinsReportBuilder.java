@@ -16,14 +16,32 @@
  */
 package ci.with.toad.edge;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 
 import org.jvnet.localizer.Localizable;
 import org.jvnet.localizer.ResourceBundleHolder;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import hudson.Extension;
@@ -33,10 +51,15 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Run;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.GlobalConfiguration;
 
 /**
  * Builder implementation used to define "Generate Report" build step.
@@ -45,9 +68,11 @@ import hudson.util.ListBoxModel;
  */
 public class GenerateJenkinsReportBuilder extends Builder {
 
-	private String OUTPUT = "JENKINS_REPORT";
+	private static final String REPORT_DIR = "JENKINS_REPORT";
+	private String OUTPUT = REPORT_DIR;
 	private String INPUT = "TMP_INPUT";
 	private String inputFolder;
+	private JvmProfile jvmProfile;
 
 	// Fields in config.jelly must match the parameter names in the
 	// "DataBoundConstructor"
@@ -65,15 +90,25 @@ public class GenerateJenkinsReportBuilder extends Builder {
 	}
 
 	protected File getCompareReportsDir(Run<?, ?> build) {
-		return new File(build.getRootDir(), OUTPUT);
+		return getReportsDir(build);
 	}
 
-	private FilePath getTmpIn(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), INPUT + build.number);
+	/**
+	 * @return JVM profile of the CLI, <tt>null</tt> for the profile of the
+	 *         global configuration. used from the <tt>config.jelly</tt> to
+	 *         display on build step.
+	 */
+	public JvmProfile getJvmProfile() {
+		return jvmProfile;
+	}
+
+	@DataBoundSetter
+	public void setJvmProfile(JvmProfile jvmProfile) {
+		this.jvmProfile = jvmProfile;
 	}
 
 	private FilePath getTmpOut(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), OUTPUT + build.number);
+		return new FilePath(build.getWorkspace(), FileUtils.getTempName(OUTPUT, build));
 	}
 	
 
@@ -81,77 +116,203 @@ public class GenerateJenkinsReportBuilder extends Builder {
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
 			throws IOException, InterruptedException {
 		// This is where you 'build' the project.
-		System.setOut(listener.getLogger());
-		System.setErr(listener.getLogger());
-
 		FormValidation checkValidation = FormValidationUtil.restrictLocation(inputFolder, build);
 		if(checkValidation != FormValidation.ok()) {
 			throw new Error(checkValidation.getMessage());
 		}
 
-		copyBuildFiles(build, listener);
-		FilePath tmpOutput = getTmpOut(build);
-		tmpOutput.mkdirs();
+		InputStager stager = new InputStager(build, listener);
+		try {
+			InputStager.Staged input = stager.add(inputFolder, FileUtils.getTempName(INPUT, build));
+			InputStager.Staged output = stager.addOutput(getTmpOut(build), true);
+			stager.stage();
+
+			// output of a compare by schema is rendered schema by schema
+			Boolean result = ShardedCompare.report(build, launcher, listener, jvmProfile, input.getFilePath(),
+					output.getFilePath());
+			if (result == null && NoDifferences.isMarked(input.getFilePath())) {
+				NoDifferences.writeReport(build, output.getFilePath(), listener);
+				result = true;
+			}
+			if (result == null) {
+				Map<String, String> arguments = new HashMap<>();
+				arguments.put("-out", output.getPath());
+				arguments.put("-in", input.getPath());
+				arguments.put("-report", "");
+				arguments.put("-type", "JENKINS");
 
-		Map<String, String> arguments = new HashMap<>();
-		arguments.put("-out", tmpOutput.toURI().getPath());
-		arguments.put("-in", getTmpIn(build).toURI().getPath());
-		arguments.put("-report", "");
-		arguments.put("-type", "JENKINS");
+				result = (ProcessLauncher.exec(arguments, build, launcher, listener, jvmProfile) == 0);
+			}
 
-		boolean result = (ProcessLauncher.exec(arguments, build, launcher, listener) == 0);
+			publishReport(build, getTmpOut(build), listener);
 
-		copyReportToTargetLocation(build, listener);
-		deleteBuildFiles(build, listener);
+			return result;
+		} finally {
+			stager.cleanup();
+		}
+	}
 
-		ReportPublisherAction action = new ReportPublisherAction(getCompareReportsDir(build));
-		ReportFrameAction frameAction = new ReportFrameAction(getCompareReportsDir(build));
+	/**
+	 * Copies generated Jenkins report to the build directory and attaches
+	 * report actions to the build.
+	 * 
+	 * @param build
+	 *            - build run
+	 * @param jobOutputDir
+	 *            - folder containing generated report
+	 * @param listener
+	 *            - build listener
+	 * @throws IOException
+	 *             - if IO exception occurred during copying
+	 * @throws InterruptedException
+	 *             - if copying was interrupted
+	 */
+	static void publishReport(AbstractBuild<?, ?> build, FilePath jobOutputDir, BuildListener listener)
+			throws IOException, InterruptedException {
+		copyReportToTargetLocation(build, jobOutputDir, listener);
+
+		ReportPublisherAction action = new ReportPublisherAction(getReportsDir(build));
+		ReportFrameAction frameAction = new ReportFrameAction(getReportsDir(build));
 		build.addAction(action);
 		build.addAction(frameAction);
+	}
 
-		return result;
+	static File getReportsDir(Run<?, ?> build) {
+		return new File(build.getRootDir(), REPORT_DIR);
 	}
 
-	private void copyReportToTargetLocation(AbstractBuild<?, ?> build, BuildListener listener)
-			throws IOException, InterruptedException {
-		FilePath jobOutputDir = getTmpOut(build);
-		File compareReportsDir = getCompareReportsDir(build);
-		try {
-			compareReportsDir.mkdirs();
-		} catch (SecurityException e) {
-			throw new RuntimeException("Unable to create " + compareReportsDir.getPath());
+	private static void copyReportToTargetLocation(AbstractBuild<?, ?> build, FilePath jobOutputDir,
+			BuildListener listener) throws IOException, InterruptedException {
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+		boolean keepArchive = config != null && config.getReportStorage() == ReportStorage.ARCHIVE;
+		File compareReportsDir = getReportsDir(build);
+		File archive = ReportArchive.getFile(compareReportsDir);
+		if (!keepArchive) {
+			try {
+				compareReportsDir.mkdirs();
+			} catch (SecurityException e) {
+				throw new RuntimeException("Unable to create " + compareReportsDir.getPath());
+			}
 		}
 
 		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY",
-				jobOutputDir, compareReportsDir).toString());
-		jobOutputDir.copyRecursiveTo(new FilePath(compareReportsDir));
-		listener.getLogger().println(
-				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
+				jobOutputDir, keepArchive ? archive : compareReportsDir).toString());
+		long start = System.nanoTime();
+		long size;
+		long transferred;
+		boolean stored = false;
+		try {
+			// a remote stream also works when the workspace is on the
+			// controller and the callable is not serialized
+			try (CountingOutputStream out = new CountingOutputStream(new FileOutputStream(archive))) {
+				size = jobOutputDir.act(new PackReportCallable(new RemoteOutputStream(out),
+						config != null ? config.getReportCompressionLevel() : Deflater.DEFAULT_COMPRESSION));
+				VirtualChannel channel = jobOutputDir.getChannel();
+				if (channel instanceof Channel) {
+					// wait for data still on its way to the archive
+					((Channel) channel).syncLocalIO();
+				}
+				transferred = out.getByteCount();
+			}
+			if (!keepArchive) {
+				// unzip does not check entry names, the archive comes from the agent
+				for (ReportArchive.Entry entry : ReportArchive.get(archive).getEntries()) {
+					resolveEntry(compareReportsDir, entry.getName());
+				}
+				new FilePath(archive).unzip(new FilePath(compareReportsDir));
+				precompress(archive, compareReportsDir);
+			}
+			stored = keepArchive;
+		} finally {
+			if (!stored) {
+				archive.delete();
+			}
+		}
+		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+				"ReportTransferred", size, transferred, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+						.toString());
 	}
 
-	private void copyBuildFiles(AbstractBuild<?, ?> build, BuildListener listener)
-			throws IOException, InterruptedException {
-		FilePath compareOutputDir = FileUtils.getFilePath(build, inputFolder);
-		FilePath workspaceInput = getTmpIn(build);
-		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY",
-				compareOutputDir, workspaceInput).toString());
-		compareOutputDir.copyRecursiveTo(workspaceInput);
-		listener.getLogger().println(
-				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
+	/**
+	 * Stores a gzip copy next to each extracted report file that benefits from
+	 * compression. The copies are made from the deflated data of the archive,
+	 * so nothing is compressed again.
+	 */
+	private static void precompress(File archive, File compareReportsDir) throws IOException {
+		ReportArchive report = ReportArchive.get(archive);
+		for (ReportArchive.Entry entry : report.getEntries()) {
+			if (!entry.isWorthCompressing()) {
+				continue;
+			}
+			File gzip = new File(resolveEntry(compareReportsDir, entry.getName()).getPath()
+					+ ReportPublisherAction.GZIP_SUFFIX);
+			try (InputStream in = report.openGzip(entry); OutputStream out = new FileOutputStream(gzip)) {
+				IOUtils.copyLarge(in, out);
+			}
+		}
 	}
 
-	private void deleteBuildFiles(AbstractBuild<?, ?> build, BuildListener listener)
-			throws IOException, InterruptedException {
-		FilePath workspaceInputDir = getTmpIn(build);
-		FilePath workspaceOutputDir = getTmpOut(build);
-		listener.getLogger().println(
-				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", workspaceInputDir)
-						.toString());
-		workspaceInputDir.deleteRecursive();
-		listener.getLogger().println(
-				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", workspaceOutputDir)
-						.toString());
-		workspaceOutputDir.deleteRecursive();
+	/**
+	 * Resolves the name of an entry of a report archive packed on an agent.
+	 * The agent is not trusted, so names leading out of the report folder are
+	 * rejected.
+	 *
+	 * @param compareReportsDir
+	 *            - report folder of the build
+	 * @param name
+	 *            - entry name
+	 * @return location of the entry in the report folder
+	 * @throws IOException
+	 *             - if the name is absolute or leads out of the report folder
+	 */
+	static File resolveEntry(File compareReportsDir, String name) throws IOException {
+		String normalized = name.replace('\\', '/');
+		File file = new File(compareReportsDir, normalized);
+		if (normalized.startsWith("/") || new File(normalized).isAbsolute()
+				|| Arrays.asList(normalized.split("/")).contains("..") || !file.getCanonicalPath()
+						.startsWith(compareReportsDir.getCanonicalPath() + File.separator)) {
+			throw new IOException("Report entry " + name + " is outside of " + compareReportsDir);
+		}
+		return file;
+	}
+
+	/**
+	 * Packs generated report into a zip streamed to the controller. Returns
+	 * size of the report before compression.
+	 */
+	private static class PackReportCallable extends MasterToSlaveFileCallable<Long> {
+		private static final long serialVersionUID = 1L;
+		private final OutputStream out;
+		private final int level;
+
+		PackReportCallable(OutputStream out, int level) {
+			this.out = out;
+			this.level = level;
+		}
+
+		public Long invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+			final Path root = dir.toPath();
+			final long[] size = new long[1];
+			try (final ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out))) {
+				zip.setLevel(level);
+				if (!dir.isDirectory()) {
+					// CLI failed before producing the report
+					return 0L;
+				}
+				Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						ZipEntry entry = new ZipEntry(root.relativize(file).toString().replace('\\', '/'));
+						entry.setTime(attrs.lastModifiedTime().toMillis());
+						zip.putNextEntry(entry);
+						size[0] += Files.copy(file, zip);
+						zip.closeEntry();
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+			return size[0];
+		}
 	}
 
 	// Overridden for better type safety.
@@ -23,6 +23,7 @@ import java.util.Map;
 import org.jvnet.localizer.Localizable;
 import org.jvnet.localizer.ResourceBundleHolder;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import hudson.Extension;
@@ -47,6 +48,7 @@ public class GenerateStandaloneReportBuilder extends Builder {
 	private String OUTPUT = "TMP_OUTPUT";
 	private String INPUT = "TMP_INPUT";
 	private String inputFolder;
+	private JvmProfile jvmProfile;
 
 	// Fields in config.jelly must match the parameter names in the
 	// "DataBoundConstructor"
@@ -70,72 +72,71 @@ public class GenerateStandaloneReportBuilder extends Builder {
 		return outputFolder;
 	}
 	
-	private FilePath getTmpIn(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), INPUT + build.number);
+	/**
+	 * @return JVM profile of the CLI, <tt>null</tt> for the profile of the
+	 *         global configuration. used from the <tt>config.jelly</tt> to
+	 *         display on build step.
+	 */
+	public JvmProfile getJvmProfile() {
+		return jvmProfile;
 	}
-	
+
+	@DataBoundSetter
+	public void setJvmProfile(JvmProfile jvmProfile) {
+		this.jvmProfile = jvmProfile;
+	}
+
 	private FilePath getTmpOut(AbstractBuild<?, ?> build) {
-		return new FilePath(build.getWorkspace(), OUTPUT + build.number);
+		return new FilePath(build.getWorkspace(), FileUtils.getTempName(OUTPUT, build));
 	}
 	
 
 	@Override
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
 		// This is where you 'build' the project.
-		System.setOut(listener.getLogger());
-		System.setErr(listener.getLogger());
-
 		FormValidation checkValidation = FormValidationUtil.restrictLocation(inputFolder, build);
 		if(checkValidation != FormValidation.ok()) {
 			throw new Error(checkValidation.getMessage());
 		}
-		copyBuildFiles(build, listener);
-		FilePath tmpOutput = getTmpOut(build);
-		tmpOutput.mkdirs();
-		
-		Map<String, String> arguments = new HashMap<>();
-		arguments.put("-out", tmpOutput.toURI().getPath());
-		arguments.put("-in", getTmpIn(build).toURI().getPath());
-		arguments.put("-report", "");
-		arguments.put("-type", "STANDALONE");
+		InputStager stager = new InputStager(build, listener);
+		try {
+			InputStager.Staged input = stager.add(inputFolder, FileUtils.getTempName(INPUT, build));
+			InputStager.Staged output = stager.addOutput(getTmpOut(build), true);
+			stager.stage();
+
+			// output of a compare by schema is rendered schema by schema
+			Boolean result = ShardedCompare.standaloneReport(build, launcher, listener, jvmProfile,
+					input.getFilePath(), output.getFilePath());
+			if (result == null && NoDifferences.isMarked(input.getFilePath())) {
+				NoDifferences.writeReport(build, output.getFilePath(), listener);
+				result = true;
+			}
+			if (result == null) {
+				Map<String, String> arguments = new HashMap<>();
+				arguments.put("-out", output.getPath());
+				arguments.put("-in", input.getPath());
+				arguments.put("-report", "");
+				arguments.put("-type", "STANDALONE");
+
+				result = (ProcessLauncher.exec(arguments, build, launcher, listener, jvmProfile) == 0);
+			}
 
-		boolean result = (ProcessLauncher.exec(arguments, build, launcher, listener) == 0);
-		
-		copyReportToTargetLocation(build, listener);
-		deleteBuildFiles(build, listener);
-		
-		return result;
+			copyReportToTargetLocation(build, listener);
+
+			return result;
+		} finally {
+			stager.cleanup();
+		}
 	}
 	
 	private void copyReportToTargetLocation(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
 		FilePath jobOutputDir = getTmpOut(build);
 		FilePath output = FileUtils.getFilePath(build, outputFolder);
-		if (!output.exists()) {
-			output.mkdirs();
-		}
-		
 		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", jobOutputDir, output).toString());
-		jobOutputDir.copyRecursiveTo(output);
+		StagingCopier.publish(jobOutputDir, output);
 		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),"CopyingFinished").toString());
 	}
 	
-	private void copyBuildFiles(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
-		FilePath compareOutputDir = FileUtils.getFilePath(build, inputFolder);
-		FilePath workspaceInput = getTmpIn(build);
-		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingXtoY", compareOutputDir, workspaceInput).toString());
-		compareOutputDir.copyRecursiveTo(workspaceInput);
-		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),"CopyingFinished").toString());
-	}
-	
-	private void deleteBuildFiles(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
-		FilePath workspaceInputDir = getTmpIn(build);
-		FilePath workspaceOutputDir = getTmpOut(build);
-		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", workspaceInputDir).toString());	
-		workspaceInputDir.deleteRecursive();
-		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", workspaceOutputDir).toString());
-		workspaceOutputDir.deleteRecursive();
-	}
-
 	// Overridden for better type safety.
 	// If your plugin doesn't really define any property on Descriptor,
 	// you don't have to do this.
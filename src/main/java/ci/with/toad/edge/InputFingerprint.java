@@ -0,0 +1,215 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * SHA-256 fingerprints of build step inputs, computed on the node the inputs
+ * live on.
+ * <p>
+ * A folder is fingerprinted as a Merkle tree: its hash covers names, kinds and
+ * hashes of its entries in name order, so two folders have the same
+ * fingerprint exactly when they have the same content. Hashes of files are
+ * remembered by path, size and modification time, so an unchanged input is
+ * not read again by the next build on the same node.
+ */
+public class InputFingerprint {
+
+	private static final int MAX_REMEMBERED = 100000;
+
+	private static final Map<String, FileDigest> DIGESTS = new ConcurrentHashMap<>();
+
+	/**
+	 * Fingerprints inputs in a single remoting round trip.
+	 *
+	 * @param dir
+	 *            - any location on the node the inputs live on
+	 * @param inputs
+	 *            - inputs on the same node, <tt>null</tt> elements are
+	 *            allowed
+	 * @return fingerprints in the order of inputs, <tt>null</tt> for
+	 *         <tt>null</tt> or missing inputs
+	 * @throws IOException
+	 *             - if an input cannot be read
+	 * @throws InterruptedException
+	 *             - if fingerprinting was interrupted
+	 */
+	public static List<String> of(FilePath dir, FilePath... inputs) throws IOException, InterruptedException {
+		List<String> paths = new ArrayList<>();
+		for (FilePath input : inputs) {
+			paths.add(input != null ? input.getRemote() : null);
+		}
+		return dir.act(new FingerprintCallable(paths));
+	}
+
+	/**
+	 * Checks whether two inputs on the same node have the same content. Files
+	 * of different size are told apart without reading them.
+	 *
+	 * @param first
+	 *            - input file or folder
+	 * @param second
+	 *            - input file or folder on the same node
+	 * @return <tt>true</tt> if both inputs exist and have the same content
+	 * @throws IOException
+	 *             - if an input cannot be read
+	 * @throws InterruptedException
+	 *             - if fingerprinting was interrupted
+	 */
+	public static boolean identical(FilePath first, FilePath second) throws IOException, InterruptedException {
+		if (first.getChannel() != second.getChannel()) {
+			return false;
+		}
+		return first.act(new IdenticalCallable(second.getRemote()));
+	}
+
+	/**
+	 * Fingerprints a file or folder. Must be called on the node it lives on.
+	 *
+	 * @param file
+	 *            - existing file or folder
+	 * @return hex encoded fingerprint
+	 * @throws IOException
+	 *             - if the input cannot be read
+	 */
+	static String digest(File file) throws IOException {
+		return Util.toHexString(digestBytes(file));
+	}
+
+	private static byte[] digestBytes(File file) throws IOException {
+		if (!file.isDirectory()) {
+			return digestFile(file);
+		}
+		String[] names = file.list();
+		if (names == null) {
+			throw new IOException("Unable to list " + file.getPath());
+		}
+		Arrays.sort(names);
+		MessageDigest md = newDigest();
+		for (String name : names) {
+			File child = new File(file, name);
+			md.update(name.getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+			md.update((byte) (child.isDirectory() ? 'D' : 'F'));
+			md.update(digestBytes(child));
+		}
+		return md.digest();
+	}
+
+	private static byte[] digestFile(File file) throws IOException {
+		String key = file.getAbsolutePath();
+		FileDigest cached = DIGESTS.get(key);
+		if (cached != null && cached.matches(file)) {
+			return cached.digest;
+		}
+		long size = file.length();
+		long lastModified = file.lastModified();
+		MessageDigest md = newDigest();
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				md.update(buffer, 0, read);
+			}
+		}
+		byte[] digest = md.digest();
+		if (DIGESTS.size() >= MAX_REMEMBERED) {
+			DIGESTS.clear();
+		}
+		DIGESTS.put(key, new FileDigest(size, lastModified, digest));
+		return digest;
+	}
+
+	static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static class FileDigest {
+		private final long size;
+		private final long lastModified;
+		private final byte[] digest;
+
+		FileDigest(long size, long lastModified, byte[] digest) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+
+		boolean matches(File file) {
+			return file.length() == size && file.lastModified() == lastModified;
+		}
+	}
+
+	private static class IdenticalCallable extends MasterToSlaveFileCallable<Boolean> {
+		private static final long serialVersionUID = 1L;
+		private final String other;
+
+		IdenticalCallable(String other) {
+			this.other = other;
+		}
+
+		public Boolean invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			File second = new File(other);
+			if (!f.exists() || !second.exists() || f.isDirectory() != second.isDirectory()) {
+				return false;
+			}
+			if (!f.isDirectory() && f.length() != second.length()) {
+				return false;
+			}
+			return digest(f).equals(digest(second));
+		}
+	}
+
+	private static class FingerprintCallable extends MasterToSlaveFileCallable<List<String>> {
+		private static final long serialVersionUID = 1L;
+		private final List<String> paths;
+
+		FingerprintCallable(List<String> paths) {
+			this.paths = paths;
+		}
+
+		public List<String> invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			List<String> fingerprints = new ArrayList<>();
+			for (String path : paths) {
+				File input = path != null ? new File(path) : null;
+				fingerprints.add(input != null && input.exists() ? digest(input) : null);
+			}
+			return fingerprints;
+		}
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import com.google.common.io.Files;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * Hands build step inputs to the CLI according to the configured
+ * {@link StagingMode}, prepares temporary output locations and removes all
+ * temporary files afterwards.
+ * <p>
+ * Inputs are validated by {@link FormValidationUtil#restrictLocation} to be
+ * inside the workspace before they are staged, so in {@link StagingMode#DIRECT}
+ * mode they are passed to the CLI as they are. Files of the
+ * {@link SnapshotStore} are used in place when the workspace is on the
+ * controller and linked from the {@link SnapshotReplicaCache} of the agent
+ * otherwise.
+ * <p>
+ * Files are registered first and then staged together by {@link #stage()},
+ * which takes a single remoting round trip to the node the workspace lives
+ * on and copies the inputs concurrently. {@link #cleanup()} hands temporary
+ * files to a background worker of the node, so the build does not wait for
+ * them to be deleted.
+ */
+public class InputStager {
+
+	private final AbstractBuild<?, ?> build;
+	private final BuildListener listener;
+	private final FilePath dir;
+	private final StagingMode mode;
+	private final List<Staged> pending = new ArrayList<>();
+	private final List<FilePath> temporary = new ArrayList<>();
+	private final List<SnapshotStore.Lease> leases = new ArrayList<>();
+
+	public InputStager(AbstractBuild<?, ?> build, BuildListener listener) {
+		this(build, listener, build.getWorkspace());
+	}
+
+	/**
+	 * @param build
+	 *            - build run
+	 * @param listener
+	 *            - build listener
+	 * @param dir
+	 *            - folder to place temporary copies into
+	 */
+	public InputStager(AbstractBuild<?, ?> build, BuildListener listener, FilePath dir) {
+		this.build = build;
+		this.listener = listener;
+		this.dir = dir;
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+		this.mode = config != null ? config.getStagingMode() : StagingMode.COPY;
+	}
+
+	/**
+	 * Registers input to be staged. A copy of a file keeps the original
+	 * extension.
+	 *
+	 * @param location
+	 *            - input location as configured in the build step
+	 * @param tmpName
+	 *            - name of the temporary copy in the workspace
+	 * @return input to pass to the CLI, available after {@link #stage()}
+	 */
+	public Staged add(String location, String tmpName) {
+		return add(location, tmpName, true);
+	}
+
+	/**
+	 * Registers input to be staged.
+	 *
+	 * @param location
+	 *            - input location as configured in the build step
+	 * @param tmpName
+	 *            - name of the temporary copy in the workspace
+	 * @param keepExtension
+	 *            - whether a copy of a file keeps the original extension
+	 * @return input to pass to the CLI, available after {@link #stage()}
+	 */
+	public Staged add(String location, String tmpName, boolean keepExtension) {
+		Staged staged;
+		if (SnapshotStore.isReference(location)) {
+			SnapshotStore.Lease lease = SnapshotStore.lease(build, location);
+			if (lease == null) {
+				throw new Error(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+						"SnapshotStoreNotFound", location).toString());
+			}
+			// the stored file is kept until the build step is done, even if
+			// its version is evicted meanwhile
+			leases.add(lease);
+			FilePath input = lease.getFile();
+			// stored files are read-only, no private copy is needed
+			staged = dir.isRemote() ? new Staged(input, tmpName, true, false, false)
+					: new Staged(input, null, false, false, false);
+			staged.transfer = dir.isRemote();
+		} else {
+			FilePath input = FileUtils.getFilePath(build, location);
+			staged = new Staged(input, mode == StagingMode.DIRECT ? null : tmpName, keepExtension, false, false);
+		}
+		pending.add(staged);
+		return staged;
+	}
+
+	/**
+	 * Registers temporary output location of the CLI. The location is
+	 * deleted by {@link #cleanup()}.
+	 *
+	 * @param output
+	 *            - temporary output file or folder
+	 * @param folder
+	 *            - whether the output is a folder that has to be created
+	 * @return output to pass to the CLI, available after {@link #stage()}
+	 */
+	public Staged addOutput(FilePath output, boolean folder) {
+		Staged staged = new Staged(output, null, false, true, folder);
+		pending.add(staged);
+		temporary.add(output);
+		return staged;
+	}
+
+	/**
+	 * Stages all registered inputs and outputs.
+	 *
+	 * @throws IOException
+	 *             - if IO exception occurred during copying
+	 * @throws InterruptedException
+	 *             - if copying was interrupted
+	 */
+	public void stage() throws IOException, InterruptedException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		List<Staged> local = new ArrayList<>();
+		List<StageRequest> requests = new ArrayList<>();
+		for (Staged staged : pending) {
+			if (staged.transfer) {
+				transfer(staged);
+				continue;
+			}
+			local.add(staged);
+			requests.add(new StageRequest(staged.original.getRemote(), staged.tmpName, staged.keepExtension,
+					staged.folder));
+		}
+		List<StageResult> results = requests.isEmpty() ? new ArrayList<StageResult>()
+				: dir.act(new StageCallable(requests, mode == StagingMode.LINK));
+
+		for (int i = 0; i < local.size(); i++) {
+			Staged staged = local.get(i);
+			StageResult result = results.get(i);
+			staged.path = result.uriPath;
+			if (staged.tmpName == null) {
+				staged.filePath = staged.original;
+				if (!staged.output) {
+					listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+							"UsingXInPlace", staged.original).toString());
+				} else if (result.created) {
+					listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+							"CreatingTmpFolder", staged.original).toString());
+				}
+				continue;
+			}
+			staged.filePath = new FilePath(dir, result.copyName);
+			temporary.add(staged.filePath);
+			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"CopyingXtoY", staged.original, staged.filePath).toString());
+			listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"StagingFinished", result.millis, result.written, result.linked).toString());
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Places a file of the {@link SnapshotStore} into the staging folder on an
+	 * agent, through the {@link SnapshotReplicaCache} of the agent.
+	 */
+	private void transfer(Staged staged) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		String extension = Files.getFileExtension(staged.original.getName());
+		staged.filePath = dir.child(extension.isEmpty() ? staged.tmpName : staged.tmpName + "." + extension);
+		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+				"CopyingXtoY", staged.original, staged.filePath).toString());
+		StagingCopier.Stats stats = SnapshotReplicaCache.stage(build, staged.original, staged.filePath, listener);
+		temporary.add(staged.filePath);
+		staged.path = staged.filePath.toURI().getPath();
+		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+				"StagingFinished", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), stats.getWritten(),
+				stats.getLinked()).toString());
+	}
+
+	/**
+	 * Stages single input right away.
+	 *
+	 * @param location
+	 *            - input location as configured in the build step
+	 * @param tmpName
+	 *            - name of the temporary copy in the workspace
+	 * @return input to pass to the CLI
+	 * @throws IOException
+	 *             - if IO exception occurred during copying
+	 * @throws InterruptedException
+	 *             - if copying was interrupted
+	 */
+	public FilePath stage(String location, String tmpName) throws IOException, InterruptedException {
+		Staged staged = add(location, tmpName);
+		stage();
+		return staged.getFilePath();
+	}
+
+	/**
+	 * Releases files of the {@link SnapshotStore} used by the build step.
+	 *
+	 * @throws IOException
+	 *             - if IO exception occurred during deleting a file no
+	 *             version refers to anymore
+	 */
+	public void release() throws IOException {
+		for (SnapshotStore.Lease lease : leases) {
+			lease.release();
+		}
+		leases.clear();
+	}
+
+	/**
+	 * Deletes temporary copies of staged inputs and registered outputs in
+	 * the background and releases files of the {@link SnapshotStore}.
+	 *
+	 * @throws IOException
+	 *             - if IO exception occurred during deleting
+	 * @throws InterruptedException
+	 *             - if deleting was interrupted
+	 */
+	public void cleanup() throws IOException, InterruptedException {
+		release();
+		if (temporary.isEmpty()) {
+			return;
+		}
+		for (FilePath file : temporary) {
+			listener.getLogger().println(
+					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", file).toString());
+		}
+		StagingCopier.deleteLater(temporary);
+		temporary.clear();
+	}
+
+	/**
+	 * Input or output handed to the CLI.
+	 */
+	public static class Staged {
+		private final FilePath original;
+		private final String tmpName;
+		private final boolean keepExtension;
+		private final boolean output;
+		private final boolean folder;
+		private boolean transfer;
+		private FilePath filePath;
+		private String path;
+
+		Staged(FilePath original, String tmpName, boolean keepExtension, boolean output, boolean folder) {
+			this.original = original;
+			this.tmpName = tmpName;
+			this.keepExtension = keepExtension;
+			this.output = output;
+			this.folder = folder;
+		}
+
+		/**
+		 * @return staged file or folder
+		 */
+		public FilePath getFilePath() {
+			return filePath;
+		}
+
+		/**
+		 * @return path of the staged file or folder in the form expected by
+		 *         the CLI
+		 */
+		public String getPath() {
+			return path;
+		}
+	}
+
+	private static class StageRequest implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String remote;
+		private final String tmpName;
+		private final boolean keepExtension;
+		private final boolean folder;
+
+		StageRequest(String remote, String tmpName, boolean keepExtension, boolean folder) {
+			this.remote = remote;
+			this.tmpName = tmpName;
+			this.keepExtension = keepExtension;
+			this.folder = folder;
+		}
+	}
+
+	private static class StageResult implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private String uriPath;
+		private String copyName;
+		private boolean created;
+		private long millis;
+		private long written;
+		private long linked;
+	}
+
+	/**
+	 * Copies inputs into the staging folder and creates output folders.
+	 */
+	private static class StageCallable extends MasterToSlaveFileCallable<List<StageResult>> {
+		private static final long serialVersionUID = 1L;
+		private final List<StageRequest> requests;
+		private final boolean hardLinks;
+
+		StageCallable(List<StageRequest> requests, boolean hardLinks) {
+			this.requests = requests;
+			this.hardLinks = hardLinks;
+		}
+
+		public List<StageResult> invoke(final File dir, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			List<Callable<StageResult>> tasks = new ArrayList<>();
+			for (final StageRequest request : requests) {
+				tasks.add(new Callable<StageResult>() {
+					public StageResult call() throws IOException, InterruptedException {
+						return stage(dir, request);
+					}
+				});
+			}
+			return StagingCopier.runAll(tasks);
+		}
+
+		private StageResult stage(File dir, StageRequest request) throws IOException, InterruptedException {
+			long start = System.nanoTime();
+			StageResult result = new StageResult();
+			File original = new File(request.remote);
+			if (request.tmpName == null) {
+				if (request.folder && !original.isDirectory()) {
+					if (!original.mkdirs() && !original.isDirectory()) {
+						throw new IOException("Unable to create " + original.getPath());
+					}
+					result.created = true;
+				}
+				result.uriPath = original.toURI().getPath();
+			} else {
+				result.copyName = original.isDirectory() || !request.keepExtension ? request.tmpName
+						: request.tmpName + "." + Files.getFileExtension(original.getName());
+				File copy = new File(dir, result.copyName);
+				StagingCopier.Stats stats = StagingCopier.copy(original, copy, hardLinks);
+				result.written = stats.getWritten();
+				result.linked = stats.getLinked();
+				result.uriPath = copy.toURI().getPath();
+			}
+			result.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			return result;
+		}
+	}
+}
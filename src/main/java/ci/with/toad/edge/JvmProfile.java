@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.ListBoxModel;
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * JVM options of the CLI process: maximum heap, garbage collector, number of
+ * processors the JVM sizes its thread pools for and arbitrary further
+ * options.
+ * <p>
+ * The profile of the global configuration applies to all build steps. A build
+ * step with its own profile uses it instead of the global one as a whole.
+ */
+public class JvmProfile extends AbstractDescribableImpl<JvmProfile> {
+
+	/**
+	 * Heap of automatically sized processes, in megabytes, is this base plus
+	 * the input size times the factor.
+	 */
+	private static final int AUTO_HEAP_BASE = 512;
+	private static final int AUTO_HEAP_FACTOR = 4;
+
+	/**
+	 * Automatic heap sizes are rounded up to this many megabytes, so that
+	 * inputs of similar size share warm CLI processes.
+	 */
+	private static final int AUTO_HEAP_STEP = 256;
+
+	private final int heapSize;
+	private final boolean autoHeap;
+	private final GarbageCollector garbageCollector;
+	private final int activeProcessorCount;
+	private final String jvmOptions;
+
+	// Fields in config.jelly must match the parameter names in the
+	// "DataBoundConstructor"
+	@DataBoundConstructor
+	public JvmProfile(int heapSize, boolean autoHeap, GarbageCollector garbageCollector, int activeProcessorCount,
+			String jvmOptions) {
+		this.heapSize = Math.max(heapSize, 0);
+		this.autoHeap = autoHeap;
+		this.garbageCollector = garbageCollector;
+		this.activeProcessorCount = Math.max(activeProcessorCount, 0);
+		this.jvmOptions = Util.fixEmptyAndTrim(jvmOptions);
+	}
+
+	/**
+	 * @return maximum heap in megabytes, 0 for the JVM default. Upper bound of
+	 *         the heap if it is sized automatically.
+	 */
+	public int getHeapSize() {
+		return heapSize;
+	}
+
+	/**
+	 * @return whether the heap is sized by the size of the CLI inputs
+	 */
+	public boolean isAutoHeap() {
+		return autoHeap;
+	}
+
+	public GarbageCollector getGarbageCollector() {
+		return garbageCollector != null ? garbageCollector : GarbageCollector.DEFAULT;
+	}
+
+	/**
+	 * @return number of processors reported to the JVM, 0 for all processors
+	 *         of the node
+	 */
+	public int getActiveProcessorCount() {
+		return activeProcessorCount;
+	}
+
+	/**
+	 * @return further JVM options separated by spaces
+	 */
+	public String getJvmOptions() {
+		return jvmOptions;
+	}
+
+	/**
+	 * @param profile
+	 *            - profile of a build step, may be <tt>null</tt>
+	 * @return profile to run the CLI with
+	 */
+	public static JvmProfile resolve(JvmProfile profile) {
+		if (profile != null) {
+			return profile;
+		}
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+		if (config != null && config.getJvmProfile() != null) {
+			return config.getJvmProfile();
+		}
+		return new JvmProfile(0, false, GarbageCollector.DEFAULT, 0, null);
+	}
+
+	/**
+	 * @param inputSize
+	 *            - total size of the CLI inputs in bytes, negative if not
+	 *            known
+	 * @return maximum heap in megabytes, 0 for the JVM default
+	 */
+	public int getHeapSize(long inputSize) {
+		if (!autoHeap || inputSize < 0) {
+			return heapSize;
+		}
+		int limit = heapSize;
+		if (limit == 0) {
+			MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+			limit = config != null ? config.getCliMemoryPerProcess() : Integer.MAX_VALUE;
+		}
+		long size = AUTO_HEAP_BASE + AUTO_HEAP_FACTOR * (inputSize / (1024 * 1024));
+		size = (size + AUTO_HEAP_STEP - 1) / AUTO_HEAP_STEP * AUTO_HEAP_STEP;
+		return (int) Math.min(size, limit);
+	}
+
+	/**
+	 * @param inputSize
+	 *            - total size of the CLI inputs in bytes, negative if not
+	 *            known
+	 * @return JVM options of the profile, each option a separate argument
+	 */
+	public List<String> getArguments(long inputSize) {
+		List<String> arguments = new ArrayList<>();
+		int heap = getHeapSize(inputSize);
+		if (heap > 0) {
+			arguments.add("-Xmx" + heap + "m");
+		}
+		if (getGarbageCollector().getOption() != null) {
+			arguments.add(getGarbageCollector().getOption());
+		}
+		if (activeProcessorCount > 0) {
+			arguments.add("-XX:ActiveProcessorCount=" + activeProcessorCount);
+		}
+		if (jvmOptions != null) {
+			arguments.addAll(Arrays.asList(Util.tokenize(jvmOptions)));
+		}
+		return arguments;
+	}
+
+	@Extension
+	public static class DescriptorImpl extends Descriptor<JvmProfile> {
+
+		public ListBoxModel doFillGarbageCollectorItems() {
+		    ListBoxModel items = new ListBoxModel();
+		    
+		    for (GarbageCollector c : GarbageCollector.values()) {
+		        items.add(c.getDisplayName(), c.name());
+		    }
+		    return items;
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "JVM profile";
+		}
+	}
+}
@@ -26,6 +26,7 @@ import org.kohsuke.stapler.StaplerRequest;
 
 import hudson.Extension;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import jenkins.model.GlobalConfiguration;
 import net.sf.json.JSONObject;
 
@@ -46,6 +47,97 @@ public class MainConfiguration extends GlobalConfiguration {
 	 * Libraries location
 	 */
 	private String libs;
+
+	/**
+	 * Keep a warm CLI process ready on each node
+	 */
+	private boolean cliDaemon;
+
+	/**
+	 * Minutes after which an unused warm CLI process is stopped
+	 */
+	private int cliDaemonIdleTimeout = DEFAULT_CLI_DAEMON_IDLE_TIMEOUT;
+
+	private static final int DEFAULT_CLI_DAEMON_IDLE_TIMEOUT = 30;
+
+	/**
+	 * Start new CLI processes with a class data sharing archive
+	 */
+	private boolean cliClassDataSharing;
+
+	/**
+	 * How build step inputs are handed to the CLI
+	 */
+	private StagingMode stagingMode = StagingMode.COPY;
+
+	/**
+	 * Hours after which leftover temporary files are removed from workspaces
+	 */
+	private int janitorMaxAge = DEFAULT_JANITOR_MAX_AGE;
+
+	private static final int DEFAULT_JANITOR_MAX_AGE = 24;
+
+	/**
+	 * Compression level of Jenkins reports transferred to the controller
+	 */
+	private int reportCompressionLevel = DEFAULT_REPORT_COMPRESSION_LEVEL;
+
+	private static final int DEFAULT_REPORT_COMPRESSION_LEVEL = 6;
+
+	/**
+	 * How Jenkins reports are stored in the build folder
+	 */
+	private ReportStorage reportStorage = ReportStorage.FOLDER;
+
+	/**
+	 * Size of compare output cache on each node in megabytes
+	 */
+	private int compareCacheSize = DEFAULT_COMPARE_CACHE_SIZE;
+
+	private static final int DEFAULT_COMPARE_CACHE_SIZE = 1024;
+
+	/**
+	 * Size of snapshot store on the controller in megabytes
+	 */
+	private int snapshotStoreSize = DEFAULT_SNAPSHOT_STORE_SIZE;
+
+	private static final int DEFAULT_SNAPSHOT_STORE_SIZE = 10240;
+
+	/**
+	 * Size of snapshot store replicas on each agent in megabytes
+	 */
+	private int snapshotCacheSize = DEFAULT_SNAPSHOT_CACHE_SIZE;
+
+	private static final int DEFAULT_SNAPSHOT_CACHE_SIZE = 4096;
+
+	/**
+	 * Maximum number of schemas compared at the same time by a build step
+	 */
+	private int shardParallelism = DEFAULT_SHARD_PARALLELISM;
+
+	private static final int DEFAULT_SHARD_PARALLELISM = 4;
+
+	/**
+	 * Maximum number of CLI processes running at the same time on each node
+	 */
+	private int cliProcessesPerNode;
+
+	/**
+	 * Memory available to CLI processes on each node in megabytes
+	 */
+	private int cliMemoryPerNode;
+
+	/**
+	 * Memory reserved for one CLI process in megabytes
+	 */
+	private int cliMemoryPerProcess = DEFAULT_CLI_MEMORY_PER_PROCESS;
+
+	private static final int DEFAULT_CLI_MEMORY_PER_PROCESS = 1024;
+
+	/**
+	 * JVM options of CLI processes
+	 */
+	private JvmProfile jvmProfile;
 	
 	/**
 	 * This human readable name is used in the configuration screen.
@@ -57,6 +149,22 @@ public class MainConfiguration extends GlobalConfiguration {
 	@Override
 	public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
 		libs = formData.getString("libs");
+		cliDaemon = formData.optBoolean("cliDaemon");
+		cliDaemonIdleTimeout = formData.optInt("cliDaemonIdleTimeout", DEFAULT_CLI_DAEMON_IDLE_TIMEOUT);
+		cliClassDataSharing = formData.optBoolean("cliClassDataSharing");
+		stagingMode = StagingMode.valueOf(formData.optString("stagingMode", StagingMode.COPY.name()));
+		janitorMaxAge = formData.optInt("janitorMaxAge", DEFAULT_JANITOR_MAX_AGE);
+		reportCompressionLevel = formData.optInt("reportCompressionLevel", DEFAULT_REPORT_COMPRESSION_LEVEL);
+		reportStorage = ReportStorage.valueOf(formData.optString("reportStorage", ReportStorage.FOLDER.name()));
+		compareCacheSize = formData.optInt("compareCacheSize", DEFAULT_COMPARE_CACHE_SIZE);
+		snapshotStoreSize = formData.optInt("snapshotStoreSize", DEFAULT_SNAPSHOT_STORE_SIZE);
+		snapshotCacheSize = formData.optInt("snapshotCacheSize", DEFAULT_SNAPSHOT_CACHE_SIZE);
+		shardParallelism = formData.optInt("shardParallelism", DEFAULT_SHARD_PARALLELISM);
+		cliProcessesPerNode = formData.optInt("cliProcessesPerNode", 0);
+		cliMemoryPerNode = formData.optInt("cliMemoryPerNode", 0);
+		cliMemoryPerProcess = formData.optInt("cliMemoryPerProcess", DEFAULT_CLI_MEMORY_PER_PROCESS);
+		jvmProfile = formData.has("jvmProfile") ? req.bindJSON(JvmProfile.class, formData.getJSONObject("jvmProfile"))
+				: null;
 		
 		save();
 		
@@ -70,6 +178,154 @@ public class MainConfiguration extends GlobalConfiguration {
 	public String getLibs() {
 		return libs;
 	}
+
+	/**
+	 * 
+	 * @return whether build steps should run in a warm CLI process
+	 */
+	public boolean isCliDaemon() {
+		return cliDaemon;
+	}
+
+	/**
+	 * 
+	 * @return minutes after which an unused warm CLI process is stopped
+	 */
+	public int getCliDaemonIdleTimeout() {
+		return cliDaemonIdleTimeout > 0 ? cliDaemonIdleTimeout : DEFAULT_CLI_DAEMON_IDLE_TIMEOUT;
+	}
+
+	/**
+	 * 
+	 * @return whether new CLI processes write and use class data sharing
+	 *         archives
+	 */
+	public boolean isCliClassDataSharing() {
+		return cliClassDataSharing;
+	}
+
+	/**
+	 * 
+	 * @return how build step inputs are handed to the CLI
+	 */
+	public StagingMode getStagingMode() {
+		return stagingMode != null ? stagingMode : StagingMode.COPY;
+	}
+
+	/**
+	 * 
+	 * @return hours after which leftover temporary files are removed from
+	 *         workspaces, 0 if they are never removed
+	 */
+	public int getJanitorMaxAge() {
+		return Math.max(janitorMaxAge, 0);
+	}
+
+	/**
+	 * 
+	 * @return compression level (0-9) of Jenkins reports transferred to the
+	 *         controller
+	 */
+	public int getReportCompressionLevel() {
+		return Math.min(Math.max(reportCompressionLevel, 0), 9);
+	}
+
+	/**
+	 * 
+	 * @return how Jenkins reports are stored in the build folder
+	 */
+	public ReportStorage getReportStorage() {
+		return reportStorage != null ? reportStorage : ReportStorage.FOLDER;
+	}
+
+	/**
+	 * 
+	 * @return size of compare output cache on each node in megabytes, 0 if
+	 *         compare outputs are not cached
+	 */
+	public int getCompareCacheSize() {
+		return Math.max(compareCacheSize, 0);
+	}
+
+	/**
+	 * 
+	 * @return size of snapshot store on the controller in megabytes, 0 if
+	 *         old versions are never removed
+	 */
+	public int getSnapshotStoreSize() {
+		return Math.max(snapshotStoreSize, 0);
+	}
+
+	/**
+	 * 
+	 * @return size of snapshot store replicas on each agent in megabytes, 0
+	 *         if stored files are transferred by every build
+	 */
+	public int getSnapshotCacheSize() {
+		return Math.max(snapshotCacheSize, 0);
+	}
+
+	/**
+	 * 
+	 * @return maximum number of schemas compared at the same time by a build
+	 *         step
+	 */
+	public int getShardParallelism() {
+		return shardParallelism > 0 ? shardParallelism : DEFAULT_SHARD_PARALLELISM;
+	}
+
+	/**
+	 * 
+	 * @return maximum number of CLI processes running at the same time on
+	 *         each node, 0 if not limited
+	 */
+	public int getCliProcessesPerNode() {
+		return Math.max(cliProcessesPerNode, 0);
+	}
+
+	/**
+	 * 
+	 * @return memory available to CLI processes on each node in megabytes, 0
+	 *         if not limited
+	 */
+	public int getCliMemoryPerNode() {
+		return Math.max(cliMemoryPerNode, 0);
+	}
+
+	/**
+	 * 
+	 * @return memory reserved for one CLI process in megabytes
+	 */
+	public int getCliMemoryPerProcess() {
+		return cliMemoryPerProcess > 0 ? cliMemoryPerProcess : DEFAULT_CLI_MEMORY_PER_PROCESS;
+	}
+
+	/**
+	 * 
+	 * @return JVM options of CLI processes of build steps without their own
+	 *         profile, <tt>null</tt> for JVM defaults
+	 */
+	public JvmProfile getJvmProfile() {
+		return jvmProfile;
+	}
+
+	public ListBoxModel doFillStagingModeItems() {
+	    ListBoxModel items = new ListBoxModel();
+	    
+	    for (StagingMode m : StagingMode.values()) {
+	        items.add(m.getDisplayName(), m.name());
+	    }
+	    return items;
+	}
+	
+	public ListBoxModel doFillReportStorageItems() {
+	    ListBoxModel items = new ListBoxModel();
+	    
+	    for (ReportStorage r : ReportStorage.values()) {
+	        items.add(r.getDisplayName(), r.name());
+	    }
+	    return items;
+	}
 	
 	/**
 	 * Performs on-the-fly validation of the form field 'libs'.
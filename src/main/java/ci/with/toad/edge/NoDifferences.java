@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.IOException;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+
+/**
+ * Output of a compare skipped because its inputs have identical content.
+ * <p>
+ * The CLI is not launched, so its output folder only holds a marker file.
+ * Build steps reading compare output check for the marker and write an
+ * output without differences themselves, as the CLI cannot read the folder.
+ */
+public class NoDifferences {
+
+	/**
+	 * Marker file in the output folder of a skipped compare.
+	 */
+	static final String MARKER_FILE = "toad-edge-no-differences.txt";
+
+	/**
+	 * Skips a compare of inputs with identical content. Writes the marker into
+	 * the output folder and attaches an empty compare result to the build.
+	 *
+	 * @param build
+	 *            - build running the compare
+	 * @param source
+	 *            - source input
+	 * @param target
+	 *            - target input
+	 * @param output
+	 *            - compare output folder
+	 * @param listener
+	 *            - build listener
+	 * @return whether the compare was skipped
+	 * @throws IOException
+	 *             - if IO exception occurred during fingerprinting or writing
+	 * @throws InterruptedException
+	 *             - if fingerprinting was interrupted
+	 */
+	public static boolean skipCompare(AbstractBuild<?, ?> build, FilePath source, FilePath target,
+			FilePath output, BuildListener listener) throws IOException, InterruptedException {
+		if (!InputFingerprint.identical(source, target)) {
+			return false;
+		}
+		String message = getString("IdenticalInputs", source, target);
+		listener.getLogger().println(message);
+		output.mkdirs();
+		output.child(MARKER_FILE).write(message + "\n", "UTF-8");
+		CompareResultParser.attachIdentical(build, listener);
+		return true;
+	}
+
+	/**
+	 * @param input
+	 *            - compare output folder
+	 * @return whether the folder is output of a skipped compare
+	 * @throws IOException
+	 *             - if IO exception occurred during checking
+	 * @throws InterruptedException
+	 *             - if checking was interrupted
+	 */
+	public static boolean isMarked(FilePath input) throws IOException, InterruptedException {
+		return input.child(MARKER_FILE).exists();
+	}
+
+	/**
+	 * Writes a report without differences in place of the CLI.
+	 *
+	 * @param build
+	 *            - build run
+	 * @param output
+	 *            - existing report folder
+	 * @param listener
+	 *            - build listener
+	 * @throws IOException
+	 *             - if IO exception occurred during writing
+	 * @throws InterruptedException
+	 *             - if writing was interrupted
+	 */
+	public static void writeReport(AbstractBuild<?, ?> build, FilePath output, BuildListener listener)
+			throws IOException, InterruptedException {
+		listener.getLogger().println(getString("NoDifferencesGenerating"));
+		StringBuilder index = new StringBuilder();
+		index.append("<!DOCTYPE html>\n<html><head><meta charset=\"UTF-8\"><title>")
+				.append(Util.escape(build.getFullDisplayName())).append("</title></head><body><p>")
+				.append(Util.escape(getString("NoDifferencesReport"))).append("</p></body></html>\n");
+		output.child("index.html").write(index.toString(), "UTF-8");
+	}
+
+	/**
+	 * Writes a change script without changes in place of the CLI.
+	 *
+	 * @param output
+	 *            - script file
+	 * @param listener
+	 *            - build listener
+	 * @throws IOException
+	 *             - if IO exception occurred during writing
+	 * @throws InterruptedException
+	 *             - if writing was interrupted
+	 */
+	public static void writeChangeScript(FilePath output, BuildListener listener)
+			throws IOException, InterruptedException {
+		listener.getLogger().println(getString("NoDifferencesGenerating"));
+		output.write("-- " + getString("NoDifferencesReport") + "\n", "UTF-8");
+	}
+
+	private static String getString(String key, Object... args) {
+		return new Localizable(ResourceBundleHolder.get(MainConfiguration.class), key, args).toString();
+	}
+}
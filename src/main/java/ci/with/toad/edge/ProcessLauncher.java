@@ -18,9 +18,17 @@ package ci.with.toad.edge;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
 
 import hudson.EnvVars;
 import hudson.FilePath;
@@ -28,13 +36,28 @@ import hudson.Launcher;
 import hudson.Launcher.ProcStarter;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
 import hudson.util.ArgumentListBuilder;
+import jenkins.MasterToSlaveFileCallable;
 import jenkins.model.GlobalConfiguration;
 
 public class ProcessLauncher {
 
 	/**
-	 * Execute some command using library.
+	 * OSGi workspace folder of the CLI in the build workspace.
+	 */
+	static final String OSGI_DIR = "workspace";
+
+	/**
+	 * CLI arguments holding input files or folders.
+	 */
+	private static final List<String> INPUT_ARGUMENTS = Arrays.asList("-in", "-in_source", "-in_target");
+
+	/**
+	 * Execute some command using library. Waits until the node the build
+	 * runs on accepts another CLI process, see {@link CliLimiter}.
 	 * 
 	 * @param args
 	 *            - map of command line arguments
@@ -52,32 +75,186 @@ public class ProcessLauncher {
 	 */
 	public static int exec(Map<String, String> args, AbstractBuild<?, ?> build, Launcher launcher,
 			BuildListener listener) throws IOException, InterruptedException {
-		EnvVars env = build.getEnvironment(listener);
-		String javaHome = env.get("JAVA_HOME", System.getProperty("java.home"));
-		
-		String javaBin = javaHome + "/bin/java";
-		FilePath cliFolder = getWorkspaceCliFolder(build);
-		FilePath osgiDir = getOsgiDir(build);
-		
-		String exec = null;
+		return exec(args, build, launcher, listener, null, OSGI_DIR);
+	}
+
+	/**
+	 * Execute some command using library with the JVM profile of a build step.
+	 * 
+	 * @param args
+	 *            - map of command line arguments
+	 * @param build
+	 *            - build run
+	 * @param launcher
+	 *            - process starting launcher
+	 * @param listener
+	 *            - build listener
+	 * @param profile
+	 *            - JVM profile of the build step, <tt>null</tt> for the
+	 *            profile of the global configuration
+	 * @return process output value
+	 * @throws IOException
+	 *             - if IO exception occurred during execution
+	 * @throws InterruptedException
+	 *             - if execution of process was interrupted
+	 */
+	public static int exec(Map<String, String> args, AbstractBuild<?, ?> build, Launcher launcher,
+			BuildListener listener, JvmProfile profile) throws IOException, InterruptedException {
+		return exec(args, build, launcher, listener, profile, OSGI_DIR);
+	}
+
+	/**
+	 * Execute some command using library with its own OSGi workspace, so that
+	 * several CLI processes of the same build can run at the same time.
+	 * 
+	 * @param args
+	 *            - map of command line arguments
+	 * @param build
+	 *            - build run
+	 * @param launcher
+	 *            - process starting launcher
+	 * @param listener
+	 *            - build listener
+	 * @param profile
+	 *            - JVM profile of the build step, <tt>null</tt> for the
+	 *            profile of the global configuration
+	 * @param osgiDirName
+	 *            - name of the OSGi workspace folder in the build workspace,
+	 *            not used by any other running CLI process
+	 * @return process output value
+	 * @throws IOException
+	 *             - if IO exception occurred during execution
+	 * @throws InterruptedException
+	 *             - if execution of process was interrupted
+	 */
+	public static int exec(Map<String, String> args, AbstractBuild<?, ?> build, Launcher launcher,
+			BuildListener listener, JvmProfile profile, String osgiDirName) throws IOException, InterruptedException {
+		String javaBin = getJavaBin(build, listener);
+		profile = JvmProfile.resolve(profile);
+		CliLimiter.Permit permit = null;
+		CliToolchainCache.Lease toolchain = null;
 		try {
-			exec = cliFolder + "/" +  getCliJarName(build);
-		} catch (Exception e) {
-			listener.getLogger().println(e.getMessage());
+			toolchain = CliToolchainCache.acquire(build, listener);
+			List<String> cliArguments = getCliArguments(args, toolchain,
+					getOsgiDir(new FilePath(build.getWorkspace(), osgiDirName)));
+			List<String> jvmArguments = getJvmArguments(javaBin, profile,
+					getInputSize(args, profile, build.getWorkspace(), listener));
+
+			MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+			if (config != null && config.isCliDaemon()) {
+				Integer result = CliDaemon.exec(jvmArguments, cliArguments, toolchain, launcher.isUnix(),
+						config.getCliDaemonIdleTimeout(), build, listener);
+				if (result != null) {
+					return result;
+				}
+			}
+
+			// a warm process runs with the permit of its reservation
+			permit = CliLimiter.acquire(build.getBuiltOn(), listener);
+			return launch(jvmArguments, toolchain, cliArguments, getAction(args), launcher, build.getModuleRoot(),
+					listener);
+		} finally {
+			if (toolchain != null) {
+				toolchain.release();
+			}
+			if (permit != null) {
+				permit.release();
+			}
 		}
-		
-		ArgumentListBuilder arguments = new ArgumentListBuilder();
-		arguments.add(javaBin);
-		arguments.add("--add-opens=java.base/java.util=ALL-UNNAMED --add-opens=java.base/java.lang=ALL-UNNAMED -jar");
-		arguments.add(exec);
-		arguments.add("-lib");
-		arguments.add(cliFolder + "/lib");
-		arguments.add("-workspace");
-		arguments.add(osgiDir.toURI().getPath());
+	}
+
+	/**
+	 * Execute some command using library on another node than the build runs
+	 * on. The CLI tools are cached on that node and the command runs in a new
+	 * process with its OSGi workspace in the given folder.
+	 * 
+	 * @param args
+	 *            - map of command line arguments, paths on the given node
+	 * @param node
+	 *            - node to run the command on
+	 * @param workDir
+	 *            - folder on the node, not used by any other running CLI
+	 *            process
+	 * @param listener
+	 *            - build listener
+	 * @param profile
+	 *            - JVM profile of the build step, <tt>null</tt> for the
+	 *            profile of the global configuration
+	 * @return process output value
+	 * @throws IOException
+	 *             - if IO exception occurred during execution or the node is
+	 *             offline
+	 * @throws InterruptedException
+	 *             - if execution of process was interrupted
+	 */
+	public static int exec(Map<String, String> args, Node node, FilePath workDir, BuildListener listener,
+			JvmProfile profile) throws IOException, InterruptedException {
+		Computer computer = node.toComputer();
+		FilePath root = node.getRootPath();
+		if (computer == null || root == null) {
+			throw new IOException(node.getDisplayName() + " is offline");
+		}
+		String javaHome = computer.getEnvironment().get("JAVA_HOME");
+		if (javaHome == null) {
+			javaHome = String.valueOf(computer.getSystemProperties().get("java.home"));
+		}
+		profile = JvmProfile.resolve(profile);
+		CliLimiter.Permit permit = CliLimiter.acquire(node, listener);
+		CliToolchainCache.Lease toolchain = null;
+		try {
+			toolchain = CliToolchainCache.acquire(root, listener);
+			List<String> cliArguments = getCliArguments(args, toolchain, getOsgiDir(workDir.child(OSGI_DIR)));
+			List<String> jvmArguments = getJvmArguments(javaHome + "/bin/java", profile,
+					getInputSize(args, profile, workDir, listener));
+			return launch(jvmArguments, toolchain, cliArguments, getAction(args), node.createLauncher(listener),
+					workDir, listener);
+		} finally {
+			if (toolchain != null) {
+				toolchain.release();
+			}
+			permit.release();
+		}
+	}
+
+	private static List<String> getCliArguments(Map<String, String> args, CliToolchainCache.Lease toolchain,
+			String osgiDir) {
+		List<String> cliArguments = new ArrayList<>();
+		cliArguments.add("-lib");
+		cliArguments.add(toolchain.getCliFolder() + "/lib");
+		cliArguments.add("-workspace");
+		cliArguments.add(osgiDir);
 		for (Entry<String, String> e : args.entrySet()) {
-			arguments.add(e.getKey());
-			arguments.add(e.getValue());
+			cliArguments.add(e.getKey());
+			cliArguments.add(e.getValue());
+		}
+		return cliArguments;
+	}
+
+	/**
+	 * @return CLI action, the first argument without a value, e.g.
+	 *         <tt>-compare</tt>
+	 */
+	private static String getAction(Map<String, String> args) {
+		for (Entry<String, String> e : args.entrySet()) {
+			if (e.getValue() == null || e.getValue().isEmpty()) {
+				return e.getKey();
+			}
+		}
+		return "";
+	}
+
+	private static int launch(List<String> jvmArguments, CliToolchainCache.Lease toolchain,
+			List<String> cliArguments, String action, Launcher launcher, FilePath pwd, BuildListener listener)
+			throws IOException, InterruptedException {
+		CliClassDataSharing cds = CliClassDataSharing.prepare(jvmArguments, toolchain, listener);
+		ArgumentListBuilder arguments = new ArgumentListBuilder();
+		arguments.add(jvmArguments);
+		if (cds != null) {
+			arguments.add(cds.getOption());
 		}
+		arguments.add("-jar");
+		arguments.add(toolchain.getCliJar().getRemote());
+		arguments.add(cliArguments);
 
 		if (!launcher.isUnix()) {
 			arguments = arguments.toWindowsCommand();
@@ -85,47 +262,143 @@ public class ProcessLauncher {
 
 		ProcStarter procStarter = launcher.launch();
 
-		int result = procStarter.stdout(listener.getLogger()).stderr(listener.getLogger()).cmds(arguments)
-				.pwd(build.getModuleRoot()).join();
-
-		cliFolder.deleteRecursive();
+		long start = System.nanoTime();
+		int result = procStarter.stdout(listener.getLogger()).stderr(listener.getLogger()).cmds(arguments).pwd(pwd)
+				.join();
+		if (cds != null) {
+			cds.finish(action, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), listener);
+		}
 		return result;
 	}
-	
-	private static String getCliJarName(AbstractBuild<?, ?> build) throws Exception {
-		List<FilePath> list = new FilePath(build.getWorkspace(), "cli-dir").list();
-		
-		for (FilePath item : list) {
-			if (item.getName().endsWith(".jar")) {
-				return item.getName();
-			}
+
+	/**
+	 * Starts a warm CLI process on the node the build runs on, if warm CLI
+	 * processes are enabled, so that it is ready for the next CLI execution.
+	 * Nothing is started for a heap sized by the inputs, because the inputs
+	 * are not known yet.
+	 * 
+	 * @param build
+	 *            - build run
+	 * @param launcher
+	 *            - process starting launcher
+	 * @param listener
+	 *            - build listener
+	 * @param profile
+	 *            - JVM profile of the build step, <tt>null</tt> for the
+	 *            profile of the global configuration
+	 * @throws IOException
+	 *             - if IO exception occurred while preparing CLI tools
+	 * @throws InterruptedException
+	 *             - if preparation was interrupted
+	 */
+	public static void warmUp(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener,
+			JvmProfile profile) throws IOException, InterruptedException {
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+		profile = JvmProfile.resolve(profile);
+		if (config == null || !config.isCliDaemon() || profile.isAutoHeap()) {
+			return;
+		}
+		String javaBin = getJavaBin(build, listener);
+		CliToolchainCache.Lease toolchain = CliToolchainCache.acquire(build, listener);
+		try {
+			CliDaemon.warmUp(getJvmArguments(javaBin, profile, -1), toolchain, launcher.isUnix(),
+					config.getCliDaemonIdleTimeout(), build, listener);
+		} finally {
+			toolchain.release();
 		}
+	}
+
+	private static String getJavaBin(AbstractBuild<?, ?> build, BuildListener listener)
+			throws IOException, InterruptedException {
+		EnvVars env = build.getEnvironment(listener);
+		String javaHome = env.get("JAVA_HOME", System.getProperty("java.home"));
 		
-		throw new Exception("Configured folder doesn't contain CLI tools");
+		return javaHome + "/bin/java";
+	}
+
+	private static List<String> getJvmArguments(String javaBin, JvmProfile profile, long inputSize) {
+		List<String> jvmArguments = new ArrayList<>();
+		jvmArguments.add(javaBin);
+		jvmArguments.add("--add-opens=java.base/java.util=ALL-UNNAMED");
+		jvmArguments.add("--add-opens=java.base/java.lang=ALL-UNNAMED");
+		jvmArguments.addAll(profile.getArguments(inputSize));
+		return jvmArguments;
 	}
 
-	private static FilePath getOsgiDir(AbstractBuild<?, ?> build) throws IOException, InterruptedException {
-		FilePath dir = new FilePath(build.getWorkspace(), "workspace");
-		if (!dir.exists()) {
-			dir.mkdirs();
+	/**
+	 * @return total size of the inputs in bytes, -1 if the heap is not sized
+	 *         by the inputs
+	 */
+	private static long getInputSize(Map<String, String> args, JvmProfile profile, FilePath dir,
+			BuildListener listener) throws IOException, InterruptedException {
+		if (!profile.isAutoHeap()) {
+			return -1;
+		}
+		List<String> inputs = new ArrayList<>();
+		for (String key : INPUT_ARGUMENTS) {
+			if (args.containsKey(key)) {
+				inputs.add(args.get(key));
+			}
 		}
-		return dir;
+		long inputSize = dir.act(new InputSizeCallable(inputs));
+		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+				"JvmHeapSized", profile.getHeapSize(inputSize), inputSize / (1024 * 1024)).toString());
+		return inputSize;
 	}
 
-	private static FilePath getWorkspaceCliFolder(AbstractBuild<?, ?> build) throws IOException, InterruptedException {
-		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
-		
-		if (config == null) {
-			throw new RuntimeException("MainConfiguration extension is not available.");
+	private static String getOsgiDir(FilePath dir) throws IOException, InterruptedException {
+		return dir.act(new OsgiDirCallable());
+	}
+
+	/**
+	 * Sums sizes of the files of the inputs. Inputs are paths in the form
+	 * passed to the CLI.
+	 */
+	private static class InputSizeCallable extends MasterToSlaveFileCallable<Long> {
+		private static final long serialVersionUID = 1L;
+		private final List<String> inputs;
+
+		InputSizeCallable(List<String> inputs) {
+			this.inputs = inputs;
 		}
-		if (config.getLibs() == null) {
-			throw new RuntimeException("Path to libraries folder is undefined.");
+
+		public Long invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+			long size = 0;
+			for (String input : inputs) {
+				try {
+					size += getSize(new File(new URI("file", null, input, null)));
+				} catch (URISyntaxException | IllegalArgumentException e) {
+					// not a path, nothing to count
+				}
+			}
+			return size;
 		}
-		FilePath zippedLibs = new FilePath(new File(config.getLibs()));
-		FilePath target = new FilePath(build.getWorkspace(), "cli-dir");
-		
-		zippedLibs.unzip(target);
 
-		return target;
+		private static long getSize(File file) {
+			File[] children = file.listFiles();
+			if (children == null) {
+				return file.length();
+			}
+			long size = 0;
+			for (File child : children) {
+				size += getSize(child);
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Creates OSGi workspace folder of the CLI if it does not exist and
+	 * returns its path in the form expected by the CLI.
+	 */
+	private static class OsgiDirCallable extends MasterToSlaveFileCallable<String> {
+		private static final long serialVersionUID = 1L;
+
+		public String invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+			if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+				throw new IOException("Unable to create " + dir.getPath());
+			}
+			return dir.toURI().getPath();
+		}
 	}
 }
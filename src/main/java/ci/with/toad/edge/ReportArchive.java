@@ -0,0 +1,390 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read-only view of a Jenkins report stored as a single zip archive in the
+ * build folder.
+ * <p>
+ * Only the central directory is read into memory. Entries are read straight
+ * from their offsets in the archive, so the report is never extracted.
+ */
+public class ReportArchive {
+
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	private static final int MAX_COMMENT_SIZE = 0xffff;
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	private static final int GZIP_HEADER_SIZE = 10;
+	private static final int GZIP_TRAILER_SIZE = 8;
+
+	/**
+	 * Number of archive indexes kept in memory.
+	 */
+	private static final int CACHE_SIZE = 32;
+
+	private static final Map<File, ReportArchive> CACHE = Collections
+			.synchronizedMap(new LinkedHashMap<File, ReportArchive>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<File, ReportArchive> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
+
+	private final File file;
+	private final long length;
+	private final long lastModified;
+	private final Map<String, Entry> entries;
+
+	private ReportArchive(File file) throws IOException {
+		this.file = file;
+		this.length = file.length();
+		this.lastModified = file.lastModified();
+		this.entries = readCentralDirectory(file);
+	}
+
+	/**
+	 * @param reportsDir
+	 *            - folder the report would be extracted to
+	 * @return archive file of the report
+	 */
+	public static File getFile(File reportsDir) {
+		return new File(reportsDir.getParentFile(), reportsDir.getName() + ".zip");
+	}
+
+	/**
+	 * Opens report archive, reusing the index of a recently used archive.
+	 *
+	 * @param file
+	 *            - archive file
+	 * @return report archive
+	 * @throws IOException
+	 *             - if the archive cannot be read
+	 */
+	public static ReportArchive get(File file) throws IOException {
+		ReportArchive archive = CACHE.get(file);
+		if (archive == null || archive.length != file.length() || archive.lastModified != file.lastModified()) {
+			archive = new ReportArchive(file);
+			CACHE.put(file, archive);
+		}
+		return archive;
+	}
+
+	/**
+	 * @return modification time of the archive
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @param name
+	 *            - path of the entry inside the report
+	 * @return entry or <tt>null</tt> if the report does not contain it
+	 */
+	public Entry getEntry(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * @return all entries of the report
+	 */
+	public Collection<Entry> getEntries() {
+		return Collections.unmodifiableCollection(entries.values());
+	}
+
+	/**
+	 * @param entry
+	 *            - entry of this archive
+	 * @return uncompressed content of the entry
+	 * @throws IOException
+	 *             - if the archive cannot be read
+	 */
+	public InputStream open(Entry entry) throws IOException {
+		InputStream raw = openRaw(entry);
+		if (entry.method == STORED) {
+			return raw;
+		}
+		// raw inflater may need a dummy byte after the end of the data
+		InputStream padded = new SequenceInputStream(raw, new ByteArrayInputStream(new byte[1]));
+		return new InflaterInputStream(padded, new Inflater(true), 8192) {
+			private boolean closed;
+
+			@Override
+			public void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					inf.end();
+				}
+				super.close();
+			}
+		};
+	}
+
+	/**
+	 * @param entry
+	 *            - entry of this archive
+	 * @return content of the entry as stored in the archive
+	 * @throws IOException
+	 *             - if the archive cannot be read
+	 */
+	public InputStream openRaw(Entry entry) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = read(channel, entry.headerOffset, LOCAL_HEADER_SIZE);
+			if (header.getInt(0) != LOCAL_HEADER) {
+				throw new IOException("Corrupted report archive " + file);
+			}
+			long dataOffset = entry.headerOffset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xffff)
+					+ (header.getShort(28) & 0xffff);
+			return new RangeInputStream(raf, dataOffset, entry.compressedSize);
+		} catch (IOException | RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Wraps deflated data of the entry into a gzip stream, so that it can be
+	 * sent with <tt>Content-Encoding: gzip</tt> without compressing it again.
+	 *
+	 * @param entry
+	 *            - deflated entry of this archive
+	 * @return content of the entry in gzip format, see
+	 *         {@link Entry#getGzipSize()}
+	 * @throws IOException
+	 *             - if the archive cannot be read
+	 */
+	public InputStream openGzip(Entry entry) throws IOException {
+		if (!entry.isDeflated()) {
+			throw new IOException(entry.name + " is not compressed");
+		}
+		ByteBuffer header = ByteBuffer.allocate(GZIP_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		// magic, deflate, no flags, no mtime, no extra flags, unknown OS
+		header.put((byte) 0x1f).put((byte) 0x8b).put((byte) DEFLATED).put((byte) 0).putInt(0).put((byte) 0)
+				.put((byte) 0xff);
+		ByteBuffer trailer = ByteBuffer.allocate(GZIP_TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		trailer.putInt((int) entry.crc).putInt((int) entry.size);
+		return new SequenceInputStream(
+				new SequenceInputStream(new ByteArrayInputStream(header.array()), openRaw(entry)),
+				new ByteArrayInputStream(trailer.array()));
+	}
+
+	private static Map<String, Entry> readCentralDirectory(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			int tailSize = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+			ByteBuffer tail = read(channel, size - tailSize, tailSize);
+
+			int end = -1;
+			for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+				if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+					end = i;
+					break;
+				}
+			}
+			if (end < 0) {
+				throw new IOException("Not a report archive " + file);
+			}
+			long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+			long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+			if (directoryOffset == 0xffffffffL || directorySize > Integer.MAX_VALUE) {
+				throw new IOException("ZIP64 report archives are not supported " + file);
+			}
+
+			ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+			Map<String, Entry> entries = new HashMap<>();
+			int pos = 0;
+			while (pos + 46 <= directory.limit() && directory.getInt(pos) == CENTRAL_DIRECTORY_ENTRY) {
+				int nameLength = directory.getShort(pos + 28) & 0xffff;
+				int extraLength = directory.getShort(pos + 30) & 0xffff;
+				int commentLength = directory.getShort(pos + 32) & 0xffff;
+				byte[] name = new byte[nameLength];
+				directory.position(pos + 46);
+				directory.get(name);
+
+				Entry entry = new Entry(new String(name, StandardCharsets.UTF_8),
+						directory.getShort(pos + 10) & 0xffff, directory.getInt(pos + 16) & 0xffffffffL,
+						directory.getInt(pos + 20) & 0xffffffffL, directory.getInt(pos + 24) & 0xffffffffL,
+						directory.getInt(pos + 42) & 0xffffffffL);
+				if (entry.compressedSize == 0xffffffffL || entry.size == 0xffffffffL
+						|| entry.headerOffset == 0xffffffffL) {
+					throw new IOException("ZIP64 report archives are not supported " + file);
+				}
+				if (entry.method != STORED && entry.method != DEFLATED) {
+					throw new IOException("Unsupported compression of " + entry.name + " in " + file);
+				}
+				entries.put(entry.name, entry);
+				pos += 46 + nameLength + extraLength + commentLength;
+			}
+			return entries;
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of report archive");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * File of the report.
+	 */
+	public static class Entry {
+		private final String name;
+		private final int method;
+		private final long crc;
+		private final long compressedSize;
+		private final long size;
+		private final long headerOffset;
+
+		Entry(String name, int method, long crc, long compressedSize, long size, long headerOffset) {
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.headerOffset = headerOffset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return whether the entry is compressed with deflate
+		 */
+		public boolean isDeflated() {
+			return method == DEFLATED;
+		}
+
+		/**
+		 * @return CRC-32 of the uncompressed content
+		 */
+		public long getCrc() {
+			return crc;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return size of the entry returned by
+		 *         {@link ReportArchive#openGzip(Entry)}
+		 */
+		public long getGzipSize() {
+			return GZIP_HEADER_SIZE + compressedSize + GZIP_TRAILER_SIZE;
+		}
+
+		/**
+		 * @return whether sending the entry compressed saves any data
+		 */
+		public boolean isWorthCompressing() {
+			return method == DEFLATED && getGzipSize() < size;
+		}
+	}
+
+	/**
+	 * Reads a range of a file. Closes the file when closed.
+	 */
+	private static class RangeInputStream extends InputStream {
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private long position;
+		private final long end;
+
+		RangeInputStream(RandomAccessFile raf, long offset, long length) {
+			this.raf = raf;
+			this.channel = raf.getChannel();
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+			if (n > 0) {
+				position += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(Math.min(n, end - position), 0);
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(end - position, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public void close() throws IOException {
+			raf.close();
+		}
+	}
+}
@@ -17,11 +17,16 @@
 package ci.with.toad.edge;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
@@ -42,6 +47,26 @@ public class ReportPublisherAction implements Action, RunAction2, Serializable {
 	 * 
 	 */
 	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Suffix of the gzip copies stored next to extracted report files.
+	 */
+	static final String GZIP_SUFFIX = ".gz";
+
+	/**
+	 * Reports of a build never change, so browsers may keep them as long as
+	 * they like. Private because the report is only visible to users allowed
+	 * to see the build.
+	 */
+	private static final String CACHE_CONTROL = "private, max-age=31536000, immutable";
+
+	/**
+	 * Default of the <tt>hudson.model.DirectoryBrowserSupport.CSP</tt> system
+	 * property. Reports are generated on agents, so they are served with the
+	 * same policy as other files from agents.
+	 */
+	private static final String DEFAULT_CSP = "sandbox; default-src 'none'; img-src 'self'; style-src 'self';";
+
 	private transient Run<?, ?> build;
 	private File compareReportsDir;
 
@@ -82,10 +107,155 @@ public class ReportPublisherAction implements Action, RunAction2, Serializable {
 	 */
 	public void doDynamic(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
 		if (this.build != null) {
+			File archive = ReportArchive.getFile(this.compareReportsDir);
+			if (!this.compareReportsDir.isDirectory() && archive.isFile()) {
+				serveFromArchive(ReportArchive.get(archive), req, rsp);
+				return;
+			}
+			if (serveFromFolder(req, rsp)) {
+				return;
+			}
 			DirectoryBrowserSupport dbs = new DirectoryBrowserSupport(this, new FilePath(this.compareReportsDir),
 					"Compare Html Report", "graph.gif", false);
 			dbs.setIndexFileName("index.html");
 			dbs.generateResponse(req, rsp, this);
 		}
 	}
+
+	private void serveFromArchive(ReportArchive archive, StaplerRequest req, StaplerResponse rsp)
+			throws IOException, ServletException {
+		String path = req.getRestOfPath();
+		if (path.isEmpty()) {
+			// relative links of the report need the trailing slash
+			rsp.sendRedirect2(req.getRequestURI() + "/");
+			return;
+		}
+		path = getEntryName(path);
+
+		ReportArchive.Entry entry = archive.getEntry(path);
+		if (entry == null) {
+			rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		setSecurityHeaders(rsp);
+		String version = Long.toHexString(entry.getCrc()) + "-" + Long.toHexString(entry.getSize()) + "-"
+				+ Long.toHexString(archive.getLastModified());
+		if (entry.isWorthCompressing() && acceptsGzip(req)) {
+			if (!isNotModified(req, rsp, "\"" + version + "-gz\"")) {
+				try (InputStream in = archive.openGzip(entry)) {
+					send(rsp, entry.getName(), entry.getGzipSize(), true, in);
+				}
+			}
+		} else if (!isNotModified(req, rsp, "\"" + version + "\"")) {
+			try (InputStream in = archive.open(entry)) {
+				send(rsp, entry.getName(), entry.getSize(), false, in);
+			}
+		}
+	}
+
+	/**
+	 * Serves a file of an extracted report, using its precompressed copy if
+	 * the browser accepts it.
+	 *
+	 * @return <tt>false</tt> if the request is not for a report file
+	 */
+	private boolean serveFromFolder(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		String path = req.getRestOfPath();
+		if (path.isEmpty()) {
+			return false;
+		}
+		File file = new File(this.compareReportsDir, getEntryName(path));
+		if (!file.getCanonicalPath().startsWith(this.compareReportsDir.getCanonicalPath() + File.separator)
+				|| !file.isFile()) {
+			return false;
+		}
+		setSecurityHeaders(rsp);
+		File gzip = new File(file.getPath() + GZIP_SUFFIX);
+		if (gzip.isFile() && acceptsGzip(req)) {
+			if (!isNotModified(req, rsp, getVersion(gzip, "-gz"))) {
+				try (InputStream in = new FileInputStream(gzip)) {
+					send(rsp, file.getName(), gzip.length(), true, in);
+				}
+			}
+		} else if (!isNotModified(req, rsp, getVersion(file, ""))) {
+			try (InputStream in = new FileInputStream(file)) {
+				send(rsp, file.getName(), file.length(), false, in);
+			}
+		}
+		return true;
+	}
+
+	private static String getEntryName(String restOfPath) {
+		String path = restOfPath.substring(1);
+		if (path.isEmpty() || path.endsWith("/")) {
+			path += "index.html";
+		}
+		return path;
+	}
+
+	private static String getVersion(File file, String suffix) {
+		return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + suffix + "\"";
+	}
+
+	private static boolean acceptsGzip(StaplerRequest req) {
+		String accept = req.getHeader("Accept-Encoding");
+		if (accept == null) {
+			return false;
+		}
+		for (String coding : accept.split(",")) {
+			String[] parts = coding.split(";");
+			if (parts[0].trim().equalsIgnoreCase("gzip")) {
+				return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the headers {@link DirectoryBrowserSupport} sets for files it
+	 * serves, honoring the same system property.
+	 */
+	static void setSecurityHeaders(StaplerResponse rsp) {
+		String csp = System.getProperty(DirectoryBrowserSupport.class.getName() + ".CSP", DEFAULT_CSP);
+		if (!csp.trim().isEmpty()) {
+			rsp.setHeader("Content-Security-Policy", csp);
+			rsp.setHeader("X-Content-Security-Policy", csp);
+			rsp.setHeader("X-WebKit-CSP", csp);
+		}
+		rsp.setHeader("X-Content-Type-Options", "nosniff");
+	}
+
+	/**
+	 * Sets validators and caching headers of the response.
+	 *
+	 * @return <tt>true</tt> if the browser already has this version and the
+	 *         response was completed
+	 */
+	private static boolean isNotModified(StaplerRequest req, StaplerResponse rsp, String etag) {
+		rsp.setHeader("ETag", etag);
+		rsp.setHeader("Cache-Control", CACHE_CONTROL);
+		rsp.setHeader("Vary", "Accept-Encoding");
+		String match = req.getHeader("If-None-Match");
+		if (match != null) {
+			for (String tag : match.split(",")) {
+				tag = tag.trim();
+				if (tag.equals(etag) || tag.equals("*")) {
+					rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static void send(StaplerResponse rsp, String name, long length, boolean gzip, InputStream in)
+			throws IOException {
+		String contentType = Stapler.getCurrent().getServletContext().getMimeType(name);
+		rsp.setContentType(contentType != null ? contentType : "application/octet-stream");
+		if (gzip) {
+			rsp.setHeader("Content-Encoding", "gzip");
+		}
+		rsp.setHeader("Content-Length", Long.toString(length));
+		IOUtils.copyLarge(in, rsp.getOutputStream());
+	}
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+
+/**
+ * Enumeration of ways how Jenkins reports are stored in the build folder
+ *
+ */
+public enum ReportStorage {
+	/**
+	 * Report is extracted into a folder
+	 */
+	FOLDER("Extract report into build folder"),
+	/**
+	 * Report is kept as a single zip archive
+	 */
+	ARCHIVE("Keep report as a single zip archive");
+
+	private String displayName;
+
+	private ReportStorage(final String displayName) {
+		this.displayName = displayName;
+	}
+
+	/**
+	 * @return Display name for ui
+	 */
+	public String getDisplayName() {
+		return displayName;
+	}
+}
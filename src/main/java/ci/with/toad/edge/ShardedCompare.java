@@ -0,0 +1,617 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+
+/**
+ * Compares file-system synchronization folders schema by schema.
+ * <p>
+ * Each top level folder of the inputs is a schema. Schemas are compared by
+ * separate CLI processes, up to the configured number at a time, each with its
+ * own OSGi workspace. A schema missing on one side is compared with an empty
+ * folder. Outputs land in one folder with a subfolder per schema and a list
+ * of the schemas, from which {@link #report} renders a single Jenkins report.
+ * <p>
+ * Schemas can also be spread across several labelled nodes by
+ * {@link #compareOnNodes}, which gathers the outputs into the same layout.
+ */
+public class ShardedCompare {
+
+	/**
+	 * List of schemas in the merged compare output.
+	 */
+	static final String SHARDS_FILE = "toad-edge-shards.txt";
+
+	private static final String EMPTY = "EMPTY_SHARD";
+	private static final String SCRIPTS = "SHARD_SCRIPTS";
+
+	/**
+	 * Scratch folders of schemas compared on other nodes, in their root
+	 * folders.
+	 */
+	static final String FAN_OUT_DIR = "toad-edge-fan-out";
+
+	/**
+	 * Lists schemas of two inputs.
+	 *
+	 * @param source
+	 *            - source input
+	 * @param target
+	 *            - target input on the same node
+	 * @return names of the top level folders of both inputs, empty if the
+	 *         inputs cannot be split by schema
+	 * @throws IOException
+	 *             - if an input cannot be listed
+	 * @throws InterruptedException
+	 *             - if listing was interrupted
+	 */
+	public static List<String> getShards(FilePath source, FilePath target) throws IOException, InterruptedException {
+		return source.act(new ListShardsCallable(target.getRemote()));
+	}
+
+	/**
+	 * Compares inputs schema by schema and merges the outputs.
+	 *
+	 * @param build
+	 *            - build run
+	 * @param launcher
+	 *            - process starting launcher
+	 * @param listener
+	 *            - build listener
+	 * @param profile
+	 *            - JVM profile of the build step, <tt>null</tt> for the
+	 *            profile of the global configuration
+	 * @param shards
+	 *            - schemas from {@link #getShards}
+	 * @param source
+	 *            - staged source input
+	 * @param target
+	 *            - staged target input
+	 * @param settings
+	 *            - staged config file, may be <tt>null</tt>
+	 * @param output
+	 *            - existing output folder
+	 * @return <tt>true</tt> if all schemas were compared successfully
+	 * @throws IOException
+	 *             - if IO exception occurred during execution
+	 * @throws InterruptedException
+	 *             - if execution was interrupted
+	 */
+	public static boolean compare(final AbstractBuild<?, ?> build, final Launcher launcher,
+			final BuildListener listener, final JvmProfile profile, List<String> shards, final FilePath source,
+			final FilePath target, final FilePath settings, final FilePath output) throws IOException, InterruptedException {
+		final FilePath empty = new FilePath(build.getWorkspace(), FileUtils.getTempName(EMPTY, build));
+		empty.mkdirs();
+		try {
+			boolean result = runAll(listener, shards, getLocalSlots(build), new ShardTask() {
+				public int run(String shard, Slot slot) throws IOException, InterruptedException {
+					FilePath shardSource = source.child(shard);
+					FilePath shardTarget = target.child(shard);
+					FilePath shardOutput = output.child(shard);
+					shardOutput.mkdirs();
+
+					Map<String, String> arguments = new HashMap<>();
+					arguments.put("-in_source", (shardSource.isDirectory() ? shardSource : empty).toURI().getPath());
+					arguments.put("-in_target", (shardTarget.isDirectory() ? shardTarget : empty).toURI().getPath());
+					arguments.put("-out", shardOutput.toURI().getPath());
+					if (settings != null) {
+						arguments.put("-settings", settings.toURI().getPath());
+					}
+					arguments.put("-compare", "");
+					return ProcessLauncher.exec(arguments, build, launcher, listener, profile, slot.osgiDir);
+				}
+			});
+			output.child(SHARDS_FILE).write(Util.join(shards, "\n"), "UTF-8");
+			return result;
+		} finally {
+			StagingCopier.deleteLater(Collections.singletonList(empty));
+		}
+	}
+
+	/**
+	 * Lists online nodes a compare can be spread across.
+	 *
+	 * @param labelExpression
+	 *            - label expression selecting the nodes
+	 * @return online nodes matching the label, sorted by name
+	 */
+	public static List<Node> getNodes(String labelExpression) {
+		Label label = Jenkins.getInstance().getLabel(labelExpression);
+		List<Node> nodes = new ArrayList<>();
+		if (label == null) {
+			return nodes;
+		}
+		for (Node node : label.getNodes()) {
+			Computer computer = node.toComputer();
+			if (computer != null && computer.isOnline() && node.getRootPath() != null) {
+				nodes.add(node);
+			}
+		}
+		Collections.sort(nodes, new Comparator<Node>() {
+			public int compare(Node a, Node b) {
+				return a.getNodeName().compareTo(b.getNodeName());
+			}
+		});
+		return nodes;
+	}
+
+	/**
+	 * Compares inputs schema by schema on other nodes and gathers the outputs
+	 * into one output folder, laid out as by {@link #compare}.
+	 * Each node compares up to the configured number of schemas at a time and
+	 * takes the next schema once it finishes one, so faster nodes compare more
+	 * schemas. Inputs of a schema are copied into a scratch folder in the root
+	 * folder of the node, which is removed afterwards. A scratch folder left
+	 * behind by a lost agent is removed by the {@link WorkspaceJanitor}.
+	 * <p>
+	 * The CLI processes do not take executors of the nodes, so they run next
+	 * to builds of the nodes and are only bounded by the CLI process and
+	 * memory limits of each node, see {@link CliLimiter}. The nodes must have
+	 * spare capacity for them.
+	 *
+	 * @param listener
+	 *            - build listener
+	 * @param profile
+	 *            - JVM profile of the build step, <tt>null</tt> for the
+	 *            profile of the global configuration
+	 * @param shards
+	 *            - schemas from {@link #getShards}
+	 * @param nodes
+	 *            - nodes from {@link #getNodes}
+	 * @param source
+	 *            - staged source input
+	 * @param target
+	 *            - staged target input
+	 * @param settings
+	 *            - staged config file, may be <tt>null</tt>
+	 * @param output
+	 *            - existing output folder
+	 * @return <tt>true</tt> if all schemas were compared successfully
+	 * @throws IOException
+	 *             - if IO exception occurred during execution
+	 * @throws InterruptedException
+	 *             - if execution was interrupted
+	 */
+	public static boolean compareOnNodes(final BuildListener listener, final JvmProfile profile, List<String> shards,
+			List<Node> nodes, final FilePath source, final FilePath target, final FilePath settings,
+			final FilePath output) throws IOException, InterruptedException {
+		List<Slot> slots = new ArrayList<>();
+		int parallelism = getParallelism();
+		for (Node node : nodes) {
+			for (int i = 0; i < parallelism; i++) {
+				slots.add(new Slot(node, node.getDisplayName(), null));
+			}
+		}
+
+		boolean result = runAll(listener, shards, slots, new ShardTask() {
+			public int run(String shard, Slot slot) throws IOException, InterruptedException {
+				FilePath root = slot.node.getRootPath();
+				if (root == null) {
+					throw new IOException(slot.name + " is offline");
+				}
+				FilePath scratch = root.child(FAN_OUT_DIR).child(UUID.randomUUID().toString());
+				try {
+					FilePath shardSource = scratch.child("source");
+					FilePath shardTarget = scratch.child("target");
+					FilePath shardOutput = scratch.child("output");
+					transfer(source.child(shard), shardSource);
+					transfer(target.child(shard), shardTarget);
+					shardOutput.mkdirs();
+
+					Map<String, String> arguments = new HashMap<>();
+					arguments.put("-in_source", shardSource.toURI().getPath());
+					arguments.put("-in_target", shardTarget.toURI().getPath());
+					arguments.put("-out", shardOutput.toURI().getPath());
+					if (settings != null) {
+						FilePath shardSettings = scratch.child(settings.getName());
+						settings.copyTo(shardSettings);
+						arguments.put("-settings", shardSettings.toURI().getPath());
+					}
+					arguments.put("-compare", "");
+					int exitCode = ProcessLauncher.exec(arguments, slot.node, scratch, listener, profile);
+
+					FilePath merged = output.child(shard);
+					merged.mkdirs();
+					shardOutput.copyRecursiveTo(merged);
+					return exitCode;
+				} finally {
+					try {
+						scratch.deleteRecursive();
+					} catch (IOException e) {
+						// agent lost, the workspace janitor removes the folder
+						listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+								"FanOutScratchLeft", scratch.getRemote(), slot.name).toString());
+					}
+				}
+			}
+		});
+		output.child(SHARDS_FILE).write(Util.join(shards, "\n"), "UTF-8");
+		return result;
+	}
+
+	/**
+	 * Renders merged compare output as a single Jenkins report: one report
+	 * per schema and an index page linking them.
+	 *
+	 * @param build
+	 *            - build run
+	 * @param launcher
+	 *            - process starting launcher
+	 * @param listener
+	 *            - build listener
+	 * @param profile
+	 *            - JVM profile of the build step, <tt>null</tt> for the
+	 *            profile of the global configuration
+	 * @param input
+	 *            - staged compare output
+	 * @param output
+	 *            - existing report folder
+	 * @return <tt>null</tt> if the input is not a merged compare output,
+	 *         otherwise whether all reports were generated successfully
+	 * @throws IOException
+	 *             - if IO exception occurred during execution
+	 * @throws InterruptedException
+	 *             - if execution was interrupted
+	 */
+	public static Boolean report(final AbstractBuild<?, ?> build, final Launcher launcher,
+			final BuildListener listener, final JvmProfile profile, final FilePath input, final FilePath output)
+			throws IOException, InterruptedException {
+		return report(build, launcher, listener, profile, input, output, "JENKINS");
+	}
+
+	/**
+	 * Renders merged compare output as standalone HTML reports: one report
+	 * per schema and an index page linking them.
+	 *
+	 * @param build
+	 *            - build run
+	 * @param launcher
+	 *            - process starting launcher
+	 * @param listener
+	 *            - build listener
+	 * @param profile
+	 *            - JVM profile of the build step, <tt>null</tt> for the
+	 *            profile of the global configuration
+	 * @param input
+	 *            - staged compare output
+	 * @param output
+	 *            - existing report folder
+	 * @return <tt>null</tt> if the input is not a merged compare output,
+	 *         otherwise whether all reports were generated successfully
+	 * @throws IOException
+	 *             - if IO exception occurred during execution
+	 * @throws InterruptedException
+	 *             - if execution was interrupted
+	 */
+	public static Boolean standaloneReport(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener,
+			JvmProfile profile, FilePath input, FilePath output) throws IOException, InterruptedException {
+		return report(build, launcher, listener, profile, input, output, "STANDALONE");
+	}
+
+	/**
+	 * Generates a change script from merged compare output: one script per
+	 * schema, concatenated in the order of the schemas.
+	 *
+	 * @param build
+	 *            - build run
+	 * @param launcher
+	 *            - process starting launcher
+	 * @param listener
+	 *            - build listener
+	 * @param profile
+	 *            - JVM profile of the build step, <tt>null</tt> for the
+	 *            profile of the global configuration
+	 * @param input
+	 *            - staged compare output
+	 * @param output
+	 *            - script file
+	 * @return <tt>null</tt> if the input is not a merged compare output,
+	 *         otherwise whether all scripts were generated successfully
+	 * @throws IOException
+	 *             - if IO exception occurred during execution
+	 * @throws InterruptedException
+	 *             - if execution was interrupted
+	 */
+	public static Boolean changeScript(final AbstractBuild<?, ?> build, final Launcher launcher,
+			final BuildListener listener, final JvmProfile profile, final FilePath input, FilePath output)
+			throws IOException, InterruptedException {
+		final List<String> shards = readShards(input);
+		if (shards == null) {
+			return null;
+		}
+		final FilePath parts = new FilePath(build.getWorkspace(), FileUtils.getTempName(SCRIPTS, build));
+		parts.mkdirs();
+		try {
+			boolean result = runAll(listener, shards, getLocalSlots(build), new ShardTask() {
+				public int run(String shard, Slot slot) throws IOException, InterruptedException {
+					Map<String, String> arguments = new HashMap<>();
+					arguments.put("-in", input.child(shard).toURI().getPath());
+					arguments.put("-out", parts.child(shard + ".sql").toURI().getPath());
+					arguments.put("-sql_change", "");
+					return ProcessLauncher.exec(arguments, build, launcher, listener, profile, slot.osgiDir);
+				}
+			});
+			parts.act(new ConcatCallable(shards, output.getRemote()));
+			return result;
+		} finally {
+			parts.deleteRecursive();
+		}
+	}
+
+	private static Boolean report(final AbstractBuild<?, ?> build, final Launcher launcher,
+			final BuildListener listener, final JvmProfile profile, final FilePath input, final FilePath output,
+			final String type) throws IOException, InterruptedException {
+		List<String> shards = readShards(input);
+		if (shards == null) {
+			return null;
+		}
+
+		boolean result = runAll(listener, shards, getLocalSlots(build), new ShardTask() {
+			public int run(String shard, Slot slot) throws IOException, InterruptedException {
+				FilePath shardOutput = output.child(shard);
+				shardOutput.mkdirs();
+
+				Map<String, String> arguments = new HashMap<>();
+				arguments.put("-out", shardOutput.toURI().getPath());
+				arguments.put("-in", input.child(shard).toURI().getPath());
+				arguments.put("-report", "");
+				arguments.put("-type", type);
+				return ProcessLauncher.exec(arguments, build, launcher, listener, profile, slot.osgiDir);
+			}
+		});
+
+		StringBuilder index = new StringBuilder();
+		index.append("<!DOCTYPE html>\n<html><head><meta charset=\"UTF-8\"><title>")
+				.append(Util.escape(build.getFullDisplayName())).append("</title></head><body><ul>\n");
+		for (String shard : shards) {
+			index.append("<li><a href=\"").append(Util.rawEncode(shard)).append("/index.html\">")
+					.append(Util.escape(shard)).append("</a></li>\n");
+		}
+		index.append("</ul></body></html>\n");
+		output.child("index.html").write(index.toString(), "UTF-8");
+		return result;
+	}
+
+	/**
+	 * @return schemas of a merged compare output, <tt>null</tt> if the input
+	 *         is not one
+	 */
+	private static List<String> readShards(FilePath input) throws IOException, InterruptedException {
+		FilePath shardsFile = input.child(SHARDS_FILE);
+		if (!shardsFile.exists()) {
+			return null;
+		}
+		List<String> shards = new ArrayList<>();
+		for (String line : shardsFile.readToString().split("\n")) {
+			if (!line.trim().isEmpty()) {
+				shards.add(line.trim());
+			}
+		}
+		return shards;
+	}
+
+	private static int getParallelism() {
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+		return config != null ? config.getShardParallelism() : 1;
+	}
+
+	/**
+	 * Slots on the node the build runs on. Each slot has an OSGi workspace in
+	 * the build workspace no other running CLI process uses.
+	 */
+	private static List<Slot> getLocalSlots(AbstractBuild<?, ?> build) {
+		Node node = build.getBuiltOn();
+		String name = node != null ? node.getDisplayName() : build.getBuiltOnStr();
+		List<Slot> slots = new ArrayList<>();
+		for (int i = 0; i < getParallelism(); i++) {
+			slots.add(new Slot(null, name, i == 0 ? ProcessLauncher.OSGI_DIR : ProcessLauncher.OSGI_DIR + "-" + i));
+		}
+		return slots;
+	}
+
+	/**
+	 * Copies inputs of a schema to another node. A schema missing on this side
+	 * becomes an empty folder.
+	 */
+	private static void transfer(FilePath from, FilePath to) throws IOException, InterruptedException {
+		to.mkdirs();
+		if (from.isDirectory()) {
+			from.copyRecursiveTo(to);
+		}
+	}
+
+	/**
+	 * Runs a task for each schema, at most one per slot at a time.
+	 */
+	private static boolean runAll(final BuildListener listener, List<String> shards, List<Slot> slots,
+			final ShardTask task) throws IOException, InterruptedException {
+		final BlockingQueue<Slot> free = new LinkedBlockingQueue<>(slots);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(Math.min(slots.size(), shards.size()), 1),
+				new NamingThreadFactory(new DaemonThreadFactory(), "Toad Edge schema compare"));
+		List<Future<Integer>> futures = new ArrayList<>();
+		try {
+			for (final String shard : shards) {
+				futures.add(pool.submit(new Callable<Integer>() {
+					public Integer call() throws IOException, InterruptedException {
+						Slot slot = free.take();
+						long start = System.nanoTime();
+						try {
+							listener.getLogger().println(new Localizable(
+									ResourceBundleHolder.get(MainConfiguration.class), "ShardStarted", shard,
+									slot.name).toString());
+							int exitCode = task.run(shard, slot);
+							listener.getLogger()
+									.println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+											"ShardFinished", shard, exitCode,
+											TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)).toString());
+							return exitCode;
+						} finally {
+							free.add(slot);
+						}
+					}
+				}));
+			}
+
+			boolean result = true;
+			for (Future<Integer> future : futures) {
+				result &= future.get() == 0;
+			}
+			return result;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			// stops remaining CLI processes if the build was aborted
+			for (Future<Integer> future : futures) {
+				future.cancel(true);
+			}
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * CLI run for a single schema.
+	 */
+	private interface ShardTask {
+		int run(String shard, Slot slot) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Place for one running CLI process.
+	 */
+	private static class Slot {
+		/**
+		 * Node to run on, <tt>null</tt> for the node the build runs on.
+		 */
+		private final Node node;
+		private final String name;
+		private final String osgiDir;
+
+		Slot(Node node, String name, String osgiDir) {
+			this.node = node;
+			this.name = name;
+			this.osgiDir = osgiDir;
+		}
+	}
+
+	/**
+	 * Concatenates change scripts of the schemas into one script, each
+	 * preceded by a comment naming its schema. A schema without a script has
+	 * no changes.
+	 */
+	private static class ConcatCallable extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+		private final List<String> shards;
+		private final String output;
+
+		ConcatCallable(List<String> shards, String output) {
+			this.shards = shards;
+			this.output = output;
+		}
+
+		public Void invoke(File parts, VirtualChannel channel) throws IOException, InterruptedException {
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+				for (String shard : shards) {
+					out.write(("-- Schema " + shard.replaceAll("[\\r\\n]", " ") + "\n")
+							.getBytes(StandardCharsets.UTF_8));
+					File part = new File(parts, shard + ".sql");
+					if (part.isFile()) {
+						Files.copy(part.toPath(), out);
+					}
+					out.write('\n');
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Lists top level folders of both inputs. Returns an empty list if either
+	 * input is not a folder or contains files outside of schema folders, which
+	 * a schema by schema compare would miss.
+	 */
+	private static class ListShardsCallable extends MasterToSlaveFileCallable<List<String>> {
+		private static final long serialVersionUID = 1L;
+		private final String target;
+
+		ListShardsCallable(String target) {
+			this.target = target;
+		}
+
+		public List<String> invoke(File source, VirtualChannel channel) throws IOException, InterruptedException {
+			Set<String> shards = new TreeSet<>();
+			for (File input : new File[] { source, new File(target) }) {
+				File[] entries = input.listFiles();
+				if (entries == null) {
+					return Collections.emptyList();
+				}
+				for (File entry : entries) {
+					if (!entry.isDirectory()) {
+						return Collections.emptyList();
+					}
+					shards.add(entry.getName());
+				}
+			}
+			return new ArrayList<>(shards);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+
+/**
+ * Manifest of the file system synchronization folder a snapshot or baseline
+ * was created from, kept in the job folder.
+ * <p>
+ * The manifest lists path, size, modification time and hash of every file of
+ * the input. A file whose size and modification time did not change is not
+ * read again, a file that was only touched is recognized by its hash. If the
+ * input, the CLI libraries and the produced snapshot file did not change, the
+ * snapshot is reused instead of created again.
+ */
+public class SnapshotManifest implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private static final String MANIFEST_DIR = "toad-edge-snapshot-manifests";
+
+	/**
+	 * Maximum number of changed files listed in the build log.
+	 */
+	private static final int MAX_LOGGED_CHANGES = 5;
+
+	private String libsDigest;
+	private int build;
+	private long outputSize;
+	private long outputLastModified;
+	private Map<String, FileEntry> files = new TreeMap<>();
+
+	private transient XmlFile xmlFile;
+	private transient boolean unchanged;
+
+	/**
+	 * Compares input of a snapshot build step with the manifest of its last
+	 * successful run and logs the outcome.
+	 *
+	 * @param build
+	 *            - build run
+	 * @param listener
+	 *            - build listener
+	 * @param action
+	 *            - CLI argument selecting snapshot or baseline
+	 * @param inputLocation
+	 *            - input location as configured in the build step
+	 * @param outputLocation
+	 *            - output location as configured in the build step
+	 * @return manifest of the current input, to be saved with
+	 *         {@link #save(AbstractBuild, FilePath)} once the snapshot was
+	 *         created
+	 * @throws IOException
+	 *             - if the input cannot be read
+	 * @throws InterruptedException
+	 *             - if reading was interrupted
+	 */
+	public static SnapshotManifest check(AbstractBuild<?, ?> build, TaskListener listener, String action,
+			String inputLocation, String outputLocation) throws IOException, InterruptedException {
+		XmlFile xmlFile = getXmlFile(build, action, inputLocation, outputLocation);
+		SnapshotManifest previous = null;
+		if (xmlFile.exists()) {
+			try {
+				previous = (SnapshotManifest) xmlFile.read();
+			} catch (IOException e) {
+				// damaged manifest, the snapshot is created again
+			}
+		}
+
+		FilePath input = FileUtils.getFilePath(build, inputLocation);
+		FilePath output = FileUtils.getFilePath(build, outputLocation);
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+
+		SnapshotManifest current = new SnapshotManifest();
+		current.xmlFile = xmlFile;
+		current.libsDigest = config != null && config.getLibs() != null
+				? CliToolchainCache.getDigest(new File(config.getLibs())) : null;
+		if (!input.isDirectory()) {
+			// e.g. connection file, the database may have changed
+			log(listener, "SnapshotInputNotFolder", input);
+			return current;
+		}
+		Scan scan = input.act(new ScanCallable(previous != null ? previous.files : new TreeMap<String, FileEntry>()));
+		current.files = scan.files;
+
+		if (previous == null) {
+			log(listener, "SnapshotNoManifest", input);
+		} else if (current.libsDigest == null || !current.libsDigest.equals(previous.libsDigest)) {
+			log(listener, "SnapshotLibrariesChanged", input);
+		} else if (!output.exists() || output.length() != previous.outputSize
+				|| output.lastModified() != previous.outputLastModified) {
+			log(listener, "SnapshotOutputChanged", output);
+		} else if (!scan.changes.isEmpty()) {
+			log(listener, "SnapshotInputChanged", input, scan.changeCount,
+					Util.join(scan.changes, ", ") + (scan.changeCount > scan.changes.size() ? ", ..." : ""));
+		} else {
+			log(listener, "SnapshotReused", input, current.files.size(), previous.build, output);
+			current.unchanged = true;
+		}
+		return current;
+	}
+
+	/**
+	 * @return whether the snapshot from the last run can be reused
+	 */
+	public boolean isUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * Saves the manifest after the snapshot was created.
+	 *
+	 * @param build
+	 *            - build run
+	 * @param output
+	 *            - created snapshot file
+	 * @throws IOException
+	 *             - if the manifest cannot be written
+	 * @throws InterruptedException
+	 *             - if reading the snapshot file was interrupted
+	 */
+	public void save(AbstractBuild<?, ?> build, FilePath output) throws IOException, InterruptedException {
+		if (files.isEmpty() || !output.exists()) {
+			xmlFile.getFile().delete();
+			return;
+		}
+		this.build = build.getNumber();
+		this.outputSize = output.length();
+		this.outputLastModified = output.lastModified();
+		xmlFile.write(this);
+	}
+
+	private static XmlFile getXmlFile(AbstractBuild<?, ?> build, String action, String inputLocation,
+			String outputLocation) throws IOException {
+		MessageDigest md = InputFingerprint.newDigest();
+		md.update((action + '\0' + inputLocation + '\0' + outputLocation).getBytes(StandardCharsets.UTF_8));
+		File dir = new File(build.getParent().getRootDir(), MANIFEST_DIR);
+		return new XmlFile(Jenkins.XSTREAM2, new File(dir, Util.toHexString(md.digest()) + ".xml"));
+	}
+
+	private static void log(TaskListener listener, String key, Object... args) {
+		listener.getLogger()
+				.println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), key, args).toString());
+	}
+
+	/**
+	 * Single file of the input.
+	 */
+	public static class FileEntry implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final long size;
+		private final long lastModified;
+		private final String hash;
+
+		FileEntry(long size, long lastModified, String hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	private static class Scan implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final Map<String, FileEntry> files = new TreeMap<>();
+		private final List<String> changes = new ArrayList<>();
+		private int changeCount;
+
+		void change(String change) {
+			if (changes.size() < MAX_LOGGED_CHANGES) {
+				changes.add(change);
+			}
+			changeCount++;
+		}
+	}
+
+	/**
+	 * Lists the input folder and compares it with the previous manifest.
+	 */
+	private static class ScanCallable extends MasterToSlaveFileCallable<Scan> {
+		private static final long serialVersionUID = 1L;
+		private final Map<String, FileEntry> previous;
+
+		ScanCallable(Map<String, FileEntry> previous) {
+			this.previous = previous;
+		}
+
+		public Scan invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+			final Path root = dir.toPath();
+			final Scan scan = new Scan();
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					if (!attrs.isRegularFile()) {
+						return FileVisitResult.CONTINUE;
+					}
+					String path = root.relativize(file).toString().replace('\\', '/');
+					long size = attrs.size();
+					long lastModified = attrs.lastModifiedTime().toMillis();
+					FileEntry old = previous.get(path);
+					String hash = old != null && old.size == size && old.lastModified == lastModified ? old.hash
+							: InputFingerprint.digest(file.toFile());
+					scan.files.put(path, new FileEntry(size, lastModified, hash));
+					if (old == null) {
+						scan.change("+" + path);
+					} else if (!old.hash.equals(hash)) {
+						scan.change("*" + path);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			for (String path : previous.keySet()) {
+				if (!scan.files.containsKey(path)) {
+					scan.change("-" + path);
+				}
+			}
+			return scan;
+		}
+	}
+}
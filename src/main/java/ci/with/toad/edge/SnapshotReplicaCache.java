@@ -0,0 +1,314 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * Per-node replicas of {@link SnapshotStore} files used by builds on agents.
+ * <p>
+ * Replicas are kept in
+ * <tt>&lt;node root&gt;/toad-edge-snapshot-cache/&lt;hash&gt;/&lt;file&gt;</tt>
+ * and linked into the workspace, so repeated compares against the same
+ * baseline on the same agent do not transfer it from the controller again.
+ * Stored files are named by the SHA-256 of their content, which is checked
+ * when a replica is downloaded and before it is used. The cache is bounded by
+ * the configured size, least recently used replicas are evicted first.
+ */
+public class SnapshotReplicaCache {
+
+	private static final String CACHE_DIR = "toad-edge-snapshot-cache";
+	private static final String LOCK_FILE = ".lock";
+	private static final String STAGING_SUFFIX = ".tmp-";
+	private static final String EVICTED_SUFFIX = ".evicted-";
+
+	/**
+	 * Age after which leftovers of interrupted builds are removed.
+	 */
+	private static final long STALE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+	/**
+	 * File locks are held per JVM, so builds running in the same agent JVM
+	 * have to be serialized before they try to take the file lock.
+	 */
+	private static final Object LOCAL_LOCK = new Object();
+
+	/**
+	 * Places a stored file into the workspace on an agent.
+	 *
+	 * @param build
+	 *            - build using the file
+	 * @param blob
+	 *            - file of the {@link SnapshotStore} on the controller
+	 * @param copy
+	 *            - location in the workspace, replaced if it exists
+	 * @param listener
+	 *            - build listener
+	 * @return amount of data written and linked into the workspace
+	 * @throws IOException
+	 *             - if IO exception occurred during copying
+	 * @throws InterruptedException
+	 *             - if copying was interrupted
+	 */
+	public static StagingCopier.Stats stage(AbstractBuild<?, ?> build, FilePath blob, FilePath copy,
+			TaskListener listener) throws IOException, InterruptedException {
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+		long maxSize = config != null ? config.getSnapshotCacheSize() * 1024L * 1024L : 0;
+		String fileName = blob.getName();
+		String hash = fileName.contains(".") ? fileName.substring(0, fileName.indexOf('.')) : fileName;
+		FilePath cacheRoot = getCacheRoot(build);
+		if (maxSize == 0 || cacheRoot == null) {
+			blob.copyTo(copy);
+			return new StagingCopier.Stats(blob.length(), 0);
+		}
+
+		StagingCopier.Stats stats;
+		try {
+			stats = cacheRoot.act(new LinkCallable(hash, fileName, copy.getRemote()));
+		} catch (IOException e) {
+			// replica evicted meanwhile, download it again
+			stats = null;
+		}
+		if (stats != null) {
+			log(listener, "SnapshotCacheHit", blob.getName(), cacheRoot.child(hash));
+			return stats;
+		}
+
+		log(listener, "SnapshotCacheMiss", blob.getName(), cacheRoot.child(hash));
+		cacheRoot.mkdirs();
+		FilePath staging = cacheRoot.child(hash + STAGING_SUFFIX + UUID.randomUUID());
+		try {
+			blob.copyTo(staging);
+			StoreResult result = cacheRoot
+					.act(new StoreCallable(hash, fileName, staging.getName(), copy.getRemote(), maxSize));
+			if (!result.stored) {
+				log(listener, "SnapshotCacheNotStored", blob.getName(), cacheRoot.child(hash));
+			}
+			for (String evicted : result.evicted) {
+				log(listener, "SnapshotCacheEvicted", evicted);
+			}
+			return result.stats;
+		} finally {
+			if (staging.exists()) {
+				staging.delete();
+			}
+		}
+	}
+
+	private static FilePath getCacheRoot(AbstractBuild<?, ?> build) {
+		Node node = build.getBuiltOn();
+		FilePath root = node != null ? node.getRootPath() : null;
+		return root != null ? root.child(CACHE_DIR) : null;
+	}
+
+	private static void log(TaskListener listener, String key, Object... args) {
+		listener.getLogger()
+				.println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), key, args).toString());
+	}
+
+	/**
+	 * Must be called on the node the cache lives on.
+	 *
+	 * @return whether the replica has the expected content
+	 */
+	private static boolean verify(File replica, String hash) throws IOException {
+		// remembered by size and modification time, read only once
+		return replica.isFile() && InputFingerprint.digest(replica).equals(hash);
+	}
+
+	/**
+	 * Must be called with the cache lock held. Moves least recently used
+	 * entries out of the way so that they can be deleted without holding the
+	 * lock.
+	 */
+	private static List<File> evict(File cacheRoot, String current, long maxSize) {
+		File[] files = cacheRoot.listFiles();
+		if (files == null) {
+			return Collections.emptyList();
+		}
+		long now = System.currentTimeMillis();
+		List<File> entries = new ArrayList<>();
+		List<File> doomed = new ArrayList<>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.contains(STAGING_SUFFIX) || name.contains(EVICTED_SUFFIX)) {
+				if (now - file.lastModified() > STALE_MILLIS) {
+					doomed.add(file);
+				}
+				continue;
+			}
+			if (file.isDirectory()) {
+				entries.add(file);
+			}
+		}
+
+		Collections.sort(entries, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		long total = 0;
+		for (File entry : entries) {
+			File[] replicas = entry.listFiles();
+			if (replicas != null) {
+				for (File replica : replicas) {
+					total += replica.length();
+				}
+			}
+			if (total <= maxSize || entry.getName().equals(current)) {
+				continue;
+			}
+			File evicted = new File(cacheRoot, entry.getName() + EVICTED_SUFFIX + UUID.randomUUID());
+			if (entry.renameTo(evicted)) {
+				doomed.add(evicted);
+			}
+		}
+		return doomed;
+	}
+
+	/**
+	 * Links a verified replica into the workspace and marks it as recently
+	 * used. Returns <tt>null</tt> if there is no valid replica.
+	 */
+	private static class LinkCallable extends MasterToSlaveFileCallable<StagingCopier.Stats> {
+		private static final long serialVersionUID = 1L;
+		private final String hash;
+		private final String fileName;
+		private final String copy;
+
+		LinkCallable(String hash, String fileName, String copy) {
+			this.hash = hash;
+			this.fileName = fileName;
+			this.copy = copy;
+		}
+
+		public StagingCopier.Stats invoke(File cacheRoot, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			File entry = new File(cacheRoot, hash);
+			File replica = new File(entry, fileName);
+			if (!replica.exists()) {
+				return null;
+			}
+			if (!verify(replica, hash)) {
+				// damaged on disk, downloaded again
+				Util.deleteRecursive(entry);
+				return null;
+			}
+			// the entry, not the replica, is touched so that its remembered
+			// digest stays valid
+			entry.setLastModified(System.currentTimeMillis());
+			// replicas are read-only, links are safe
+			return StagingCopier.copy(replica, new File(copy), true);
+		}
+	}
+
+	private static class StoreResult implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private StagingCopier.Stats stats;
+		private boolean stored = true;
+		private List<String> evicted = new ArrayList<>();
+	}
+
+	/**
+	 * Verifies a downloaded file, renames it to the cache entry, evicts
+	 * entries over the size limit and links the replica into the workspace.
+	 */
+	private static class StoreCallable extends MasterToSlaveFileCallable<StoreResult> {
+		private static final long serialVersionUID = 1L;
+		private final String hash;
+		private final String fileName;
+		private final String staging;
+		private final String copy;
+		private final long maxSize;
+
+		StoreCallable(String hash, String fileName, String staging, String copy, long maxSize) {
+			this.hash = hash;
+			this.fileName = fileName;
+			this.staging = staging;
+			this.copy = copy;
+			this.maxSize = maxSize;
+		}
+
+		public StoreResult invoke(File cacheRoot, VirtualChannel channel) throws IOException, InterruptedException {
+			File downloaded = new File(cacheRoot, staging);
+			if (!verify(downloaded, hash)) {
+				throw new IOException("Checksum of " + fileName + " does not match its content");
+			}
+			File entryStaging = new File(cacheRoot, staging + "-entry");
+			File replica = new File(entryStaging, fileName);
+			if (!entryStaging.mkdirs() || !downloaded.renameTo(replica)) {
+				throw new IOException("Unable to create " + replica.getPath());
+			}
+			replica.setReadOnly();
+
+			StoreResult result = new StoreResult();
+			File entry = new File(cacheRoot, hash);
+			List<File> doomed;
+			synchronized (LOCAL_LOCK) {
+				try (RandomAccessFile lockFile = new RandomAccessFile(new File(cacheRoot, LOCK_FILE), "rw");
+						FileLock lock = lockFile.getChannel().lock()) {
+					if (entry.exists() || !entryStaging.renameTo(entry)) {
+						// stored by a concurrent build
+						Util.deleteRecursive(entryStaging);
+					}
+					entry.setLastModified(System.currentTimeMillis());
+					result.stats = StagingCopier.copy(new File(entry, fileName), new File(copy), true);
+					doomed = evict(cacheRoot, hash, maxSize);
+				} catch (OverlappingFileLockException e) {
+					// held by another copy of the plugin in this JVM, the
+					// verified download is used without caching it
+					result.stats = StagingCopier.copy(replica, new File(copy), false);
+					result.stored = false;
+					Util.deleteRecursive(entryStaging);
+					return result;
+				}
+			}
+
+			for (File file : doomed) {
+				Util.deleteRecursive(file);
+				int suffix = file.getName().indexOf(EVICTED_SUFFIX);
+				if (suffix >= 0) {
+					result.evicted.add(file.getName().substring(0, suffix));
+				}
+			}
+			return result;
+		}
+	}
+}
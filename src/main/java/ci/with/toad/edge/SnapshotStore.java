@@ -0,0 +1,476 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+
+/**
+ * Managed repository of snapshot and baseline files on the controller.
+ * <p>
+ * Files are stored once under the SHA-256 hash of their content and the
+ * extension of the name, so storing the same snapshot again takes no space. Named references point to the
+ * stored files: every store under a name adds a new version, e.g.
+ * <tt>store:prod.dsnapshot@v12</tt>, while <tt>store:prod.dsnapshot</tt>
+ * stands for the latest version. A file is kept as long as any version
+ * refers to it.
+ * <p>
+ * Names are scoped to the folder of the job, so jobs in one folder share
+ * their names and jobs in other folders cannot read or overwrite them.
+ * Top-level jobs share the names of the Jenkins root.
+ * <p>
+ * When the store grows over the configured size, the oldest versions are
+ * removed, except for the latest version of each name, and files no version
+ * refers to anymore are deleted. Files leased by running build steps are
+ * deleted once the last lease is released.
+ */
+public class SnapshotStore {
+
+	/**
+	 * Prefix of locations referring to the store.
+	 */
+	public static final String PREFIX = "store:";
+
+	private static final String STORE_DIR = "toad-edge-snapshots";
+
+	private static final Pattern REFERENCE = Pattern.compile("([A-Za-z0-9._-]+)(?:@v(\\d+))?");
+
+	private static Index index;
+
+	/**
+	 * Number of leases of stored files by running build steps, guarded by
+	 * the class.
+	 */
+	private static final Map<String, Integer> LEASES = new HashMap<>();
+
+	/**
+	 * @param location
+	 *            - location as configured in a build step
+	 * @return whether the location refers to the store
+	 */
+	public static boolean isReference(String location) {
+		return location != null && location.startsWith(PREFIX);
+	}
+
+	/**
+	 * Resolves a reference to the stored file. The file is read-only and must
+	 * not be modified. Build steps reading the file use {@link #lease}
+	 * instead, so that the file is not deleted while they run.
+	 *
+	 * @param build
+	 *            - build resolving the reference, selects the folder of the
+	 *            name
+	 * @param location
+	 *            - reference, e.g. <tt>store:prod.dsnapshot@v12</tt>
+	 * @return stored file on the controller, does not exist for unknown
+	 *         references
+	 */
+	public static synchronized FilePath resolve(AbstractBuild<?, ?> build, String location) {
+		Version version = find(build, location);
+		return new FilePath(version != null ? getBlob(version.getFileName()) : new File(getRoot(), "missing"));
+	}
+
+	/**
+	 * Resolves a reference and keeps the stored file until the lease is
+	 * released, even if its version is evicted meanwhile.
+	 *
+	 * @param build
+	 *            - build resolving the reference, selects the folder of the
+	 *            name
+	 * @param location
+	 *            - reference, e.g. <tt>store:prod.dsnapshot@v12</tt>
+	 * @return lease of the stored file, <tt>null</tt> for unknown references
+	 */
+	public static synchronized Lease lease(AbstractBuild<?, ?> build, String location) {
+		Version version = find(build, location);
+		if (version == null) {
+			return null;
+		}
+		Integer count = LEASES.get(version.getFileName());
+		LEASES.put(version.getFileName(), count != null ? count + 1 : 1);
+		return new Lease(version.getFileName());
+	}
+
+	/**
+	 * @param build
+	 *            - build resolving the reference, selects the folder of the
+	 *            name
+	 * @param location
+	 *            - reference, e.g. <tt>store:prod.dsnapshot@v12</tt>
+	 * @return SHA-256 hash of the content of the referenced file,
+	 *         <tt>null</tt> for unknown references
+	 */
+	public static synchronized String getHash(AbstractBuild<?, ?> build, String location) {
+		Version version = find(build, location);
+		return version != null ? version.hash : null;
+	}
+
+	/**
+	 * Stores a snapshot file under a name.
+	 *
+	 * @param file
+	 *            - snapshot file on any node
+	 * @param location
+	 *            - name as configured in the build step, e.g.
+	 *            <tt>store:prod.dsnapshot</tt>
+	 * @param build
+	 *            - build that created the file, selects the folder of the
+	 *            name
+	 * @param listener
+	 *            - build listener
+	 * @return reference to the stored version, <tt>null</tt> if the file
+	 *         does not exist
+	 * @throws IOException
+	 *             - if the file cannot be stored
+	 * @throws InterruptedException
+	 *             - if transferring the file was interrupted
+	 */
+	public static String store(FilePath file, String location, AbstractBuild<?, ?> build, TaskListener listener)
+			throws IOException, InterruptedException {
+		String name = getKey(build, getName(location));
+		if (!file.exists()) {
+			// CLI failed before producing output
+			return null;
+		}
+		if (file.isDirectory()) {
+			throw new Error(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"SnapshotStoreNotFile", file).toString());
+		}
+
+		// temporary output of the CLI has no extension, the stored file takes
+		// it from the name
+		int dot = name.lastIndexOf('.');
+		String extension = dot > 0 ? name.substring(dot + 1) : "";
+		File blobs = new File(getRoot(), "blobs");
+		Files.createDirectories(blobs.toPath());
+		File tmp = new File(blobs, ".tmp-" + UUID.randomUUID());
+		String hash;
+		long size;
+		try {
+			MessageDigest md = InputFingerprint.newDigest();
+			try (InputStream in = new DigestInputStream(file.read(), md);
+					OutputStream out = Files.newOutputStream(tmp.toPath())) {
+				size = IOUtils.copyLarge(in, out);
+			}
+			hash = Util.toHexString(md.digest());
+
+			synchronized (SnapshotStore.class) {
+				File blob = getBlob(hash + (extension.isEmpty() ? "" : "." + extension));
+				if (!blob.exists()) {
+					tmp.setReadOnly();
+					try {
+						Files.move(tmp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					} catch (AtomicMoveNotSupportedException e) {
+						Files.move(tmp.toPath(), blob.toPath());
+					}
+				}
+
+				Index current = getIndex();
+				List<Version> versions = current.names.get(name);
+				if (versions == null) {
+					versions = new ArrayList<>();
+					current.names.put(name, versions);
+				}
+				Version latest = versions.isEmpty() ? null : versions.get(versions.size() - 1);
+				String reference;
+				if (latest != null && latest.hash.equals(hash)) {
+					// same content as the latest version
+					reference = PREFIX + name + "@v" + latest.number;
+					log(listener, "SnapshotStoreUnchanged", reference, hash);
+				} else {
+					Version version = new Version(latest != null ? latest.number + 1 : 1, hash, extension, size,
+							build.getFullDisplayName());
+					versions.add(version);
+					reference = PREFIX + name + "@v" + version.number;
+					log(listener, "SnapshotStoreStored", reference, hash);
+				}
+				evict(current, listener);
+				current.save();
+				return reference;
+			}
+		} finally {
+			if (tmp.exists()) {
+				Util.deleteFile(tmp);
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest versions until stored files fit into the configured
+	 * size. The latest version of each name is always kept. Must be called
+	 * with the class lock held.
+	 */
+	private static void evict(Index index, TaskListener listener) throws IOException {
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+		long maxSize = config != null ? config.getSnapshotStoreSize() * 1024L * 1024L : 0;
+		if (maxSize == 0) {
+			return;
+		}
+
+		Map<String, Integer> references = new TreeMap<>();
+		Map<String, Long> sizes = new TreeMap<>();
+		long total = 0;
+		for (List<Version> versions : index.names.values()) {
+			for (Version version : versions) {
+				Integer count = references.get(version.getFileName());
+				references.put(version.getFileName(), count != null ? count + 1 : 1);
+				if (!sizes.containsKey(version.getFileName())) {
+					sizes.put(version.getFileName(), version.size);
+					total += version.size;
+				}
+			}
+		}
+
+		while (total > maxSize) {
+			String oldestName = null;
+			Version oldest = null;
+			for (Map.Entry<String, List<Version>> entry : index.names.entrySet()) {
+				List<Version> versions = entry.getValue();
+				if (versions.size() > 1 && (oldest == null || versions.get(0).created < oldest.created)) {
+					oldestName = entry.getKey();
+					oldest = versions.get(0);
+				}
+			}
+			if (oldest == null) {
+				// only latest versions left
+				break;
+			}
+			index.names.get(oldestName).remove(0);
+			log(listener, "SnapshotStoreEvicted", PREFIX + oldestName + "@v" + oldest.number);
+
+			int count = references.get(oldest.getFileName()) - 1;
+			references.put(oldest.getFileName(), count);
+			if (count == 0) {
+				// files in use by running build steps are deleted when the
+				// last lease is released
+				if (!LEASES.containsKey(oldest.getFileName())) {
+					Util.deleteFile(getBlob(oldest.getFileName()));
+				}
+				total -= sizes.get(oldest.getFileName());
+			}
+		}
+	}
+
+	/**
+	 * Releases a lease and deletes the stored file if it is neither leased
+	 * nor referred to by any version anymore.
+	 */
+	private static synchronized void release(String fileName) throws IOException {
+		int count = LEASES.get(fileName) - 1;
+		if (count > 0) {
+			LEASES.put(fileName, count);
+			return;
+		}
+		LEASES.remove(fileName);
+		for (List<Version> versions : getIndex().names.values()) {
+			for (Version version : versions) {
+				if (version.getFileName().equals(fileName)) {
+					return;
+				}
+			}
+		}
+		Util.deleteFile(getBlob(fileName));
+	}
+
+	private static Version find(AbstractBuild<?, ?> build, String location) {
+		Matcher matcher = REFERENCE.matcher(location.substring(PREFIX.length()));
+		if (!matcher.matches()) {
+			return null;
+		}
+		List<Version> versions = getIndex().names.get(getKey(build, matcher.group(1)));
+		if (versions == null || versions.isEmpty()) {
+			return null;
+		}
+		if (matcher.group(2) == null) {
+			return versions.get(versions.size() - 1);
+		}
+		int number = Integer.parseInt(matcher.group(2));
+		for (Version version : versions) {
+			if (version.number == number) {
+				return version;
+			}
+		}
+		return null;
+	}
+
+	private static String getName(String location) {
+		Matcher matcher = REFERENCE.matcher(location.substring(PREFIX.length()));
+		if (!matcher.matches() || matcher.group(2) != null) {
+			throw new Error(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+					"SnapshotStoreInvalidName", location).toString());
+		}
+		return matcher.group(1);
+	}
+
+	/**
+	 * Names are scoped to the folder of the job. Names of top-level jobs are
+	 * kept as they are, folders are prefixed by their full name, which
+	 * cannot collide as names do not contain slashes.
+	 */
+	private static String getKey(AbstractBuild<?, ?> build, String name) {
+		String folder = build.getParent().getParent().getFullName();
+		return folder.isEmpty() ? name : folder + "/" + name;
+	}
+
+	private static File getRoot() {
+		return new File(Jenkins.getInstance().getRootDir(), STORE_DIR);
+	}
+
+	private static File getBlob(String fileName) {
+		return new File(new File(getRoot(), "blobs"), fileName);
+	}
+
+	private static Index getIndex() {
+		if (index == null) {
+			XmlFile xmlFile = new XmlFile(Jenkins.XSTREAM2, new File(getRoot(), "index.xml"));
+			Index loaded = null;
+			if (xmlFile.exists()) {
+				try {
+					loaded = (Index) xmlFile.read();
+				} catch (IOException e) {
+					// damaged index, stored files are kept until stored again
+				}
+			}
+			index = loaded != null ? loaded : new Index();
+			index.xmlFile = xmlFile;
+		}
+		return index;
+	}
+
+	private static void log(TaskListener listener, String key, Object... args) {
+		listener.getLogger()
+				.println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class), key, args).toString());
+	}
+
+	/**
+	 * Keeps a stored file for the duration of a build step.
+	 */
+	public static class Lease {
+		private final String fileName;
+		private boolean released;
+
+		Lease(String fileName) {
+			this.fileName = fileName;
+		}
+
+		/**
+		 * @return stored file on the controller, read-only
+		 */
+		public FilePath getFile() {
+			return new FilePath(getBlob(fileName));
+		}
+
+		/**
+		 * Releases the lease so that the file may be deleted once no version
+		 * refers to it.
+		 */
+		public void release() throws IOException {
+			if (!released) {
+				released = true;
+				SnapshotStore.release(fileName);
+			}
+		}
+	}
+
+	/**
+	 * Names and their versions, persisted in <tt>index.xml</tt>. Names of jobs
+	 * in folders are prefixed by the full name of the folder.
+	 */
+	private static class Index {
+		private Map<String, List<Version>> names = new TreeMap<>();
+		private transient XmlFile xmlFile;
+
+		void save() throws IOException {
+			xmlFile.write(this);
+		}
+	}
+
+	/**
+	 * Single version of a name.
+	 */
+	public static class Version {
+		private final int number;
+		private final String hash;
+		private final String extension;
+		private final long size;
+		private final long created;
+		private final String build;
+
+		Version(int number, String hash, String extension, long size, String build) {
+			this.number = number;
+			this.hash = hash;
+			this.extension = extension;
+			this.size = size;
+			this.created = System.currentTimeMillis();
+			this.build = build;
+		}
+
+		public int getNumber() {
+			return number;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		/**
+		 * @return name of the stored file
+		 */
+		public String getFileName() {
+			return extension.isEmpty() ? hash : hash + "." + extension;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getCreated() {
+			return created;
+		}
+
+		public String getBuild() {
+			return build;
+		}
+	}
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Copies build step files on the node the workspace lives on, so that the
+ * data does not travel through the controller and each copy takes a single
+ * remoting round trip.
+ * <p>
+ * Private copies of inputs are first cloned with <tt>cp</tt> using
+ * copy-on-write reflinks where the file system supports them (btrfs, XFS,
+ * APFS). If that is not possible, files are hard linked when allowed and
+ * copied otherwise. Hard links share content with the original, so they are
+ * only used when the caller knows the CLI does not modify the input in place.
+ */
+public class StagingCopier {
+
+	/**
+	 * Maximum number of inputs copied or deleted at the same time on a node.
+	 */
+	private static final int THREADS = 4;
+
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS,
+			new NamingThreadFactory(new DaemonThreadFactory(), "Toad Edge staging"));
+
+	/**
+	 * Deletes temporary files in the background, one at a time so that
+	 * running builds are not slowed down.
+	 */
+	private static final ExecutorService DELETER = Executors
+			.newSingleThreadExecutor(new NamingThreadFactory(new DaemonThreadFactory(), "Toad Edge cleanup"));
+
+	/**
+	 * Suffix of temporary files waiting for deletion. Files left over by a
+	 * stopped agent are removed by {@link WorkspaceJanitor}.
+	 */
+	static final String DELETING_SUFFIX = ".deleting-";
+
+	/**
+	 * Copies CLI output to its configured location. A folder is merged into
+	 * the target folder, a file replaces the target file.
+	 *
+	 * @param source
+	 *            - output file or folder
+	 * @param target
+	 *            - configured location
+	 * @throws IOException
+	 *             - if IO exception occurred during copying
+	 * @throws InterruptedException
+	 *             - if copying was interrupted
+	 */
+	public static void publish(FilePath source, FilePath target) throws IOException, InterruptedException {
+		if (source.getChannel() == target.getChannel()) {
+			source.act(new PublishCallable(target.getRemote()));
+			return;
+		}
+		// target is on another node, e.g. in the job root folder
+		if (source.isDirectory()) {
+			target.mkdirs();
+			source.copyRecursiveTo(target);
+		} else {
+			if (target.getParent() != null) {
+				target.getParent().mkdirs();
+			}
+			source.copyTo(target);
+		}
+	}
+
+	/**
+	 * Deletes temporary files in the background on the node they live on.
+	 * The files are renamed right away, so their names can be reused
+	 * immediately.
+	 *
+	 * @param files
+	 *            - files or folders on the same node
+	 * @throws IOException
+	 *             - if IO exception occurred during renaming
+	 * @throws InterruptedException
+	 *             - if renaming was interrupted
+	 */
+	public static void deleteLater(List<FilePath> files) throws IOException, InterruptedException {
+		if (files.isEmpty()) {
+			return;
+		}
+		List<String> paths = new ArrayList<>();
+		for (FilePath file : files) {
+			paths.add(file.getRemote());
+		}
+		files.get(0).act(new DeleteLaterCallable(paths));
+	}
+
+	/**
+	 * Makes a private copy of an input. Must be called on the node the input
+	 * lives on.
+	 *
+	 * @param source
+	 *            - input file or folder
+	 * @param copy
+	 *            - location of the copy, replaced if it exists
+	 * @param hardLinks
+	 *            - whether files may be hard linked
+	 * @return amount of data written and linked
+	 * @throws IOException
+	 *             - if IO exception occurred during copying
+	 * @throws InterruptedException
+	 *             - if copying was interrupted
+	 */
+	static Stats copy(File source, File copy, boolean hardLinks) throws IOException, InterruptedException {
+		final Path from = source.toPath();
+		final Path to = copy.toPath();
+		final Stats stats = new Stats();
+
+		if (Files.exists(to, LinkOption.NOFOLLOW_LINKS)) {
+			// left over by an interrupted build
+			Util.deleteRecursive(copy);
+		}
+		if (to.getParent() != null) {
+			Files.createDirectories(to.getParent());
+		}
+
+		if (reflink(from, to)) {
+			stats.linked = size(from);
+			return stats;
+		}
+
+		Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+			private boolean linking = hardLinks;
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(resolve(from, to, dir));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path target = resolve(from, to, file);
+				if (linking && attrs.isRegularFile()) {
+					try {
+						Files.createLink(target, file);
+						stats.linked += attrs.size();
+						return FileVisitResult.CONTINUE;
+					} catch (UnsupportedOperationException | FileSystemException e) {
+						// different file system or links not supported, no
+						// point in trying again for the remaining files
+						linking = false;
+					}
+				}
+				Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+				if (attrs.isRegularFile()) {
+					stats.written += attrs.size();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return stats;
+	}
+
+	/**
+	 * Runs tasks concurrently on the staging pool of the node and waits for
+	 * all of them. Must be called on the node the files live on.
+	 *
+	 * @param tasks
+	 *            - tasks to run
+	 * @return results in the order of tasks
+	 * @throws IOException
+	 *             - if any of the tasks failed
+	 * @throws InterruptedException
+	 *             - if waiting was interrupted, remaining tasks are cancelled
+	 */
+	static <T> List<T> runAll(List<Callable<T>> tasks) throws IOException, InterruptedException {
+		if (tasks.size() == 1) {
+			try {
+				return Collections.singletonList(tasks.get(0).call());
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+		List<Future<T>> futures = new ArrayList<>();
+		for (Callable<T> task : tasks) {
+			futures.add(POOL.submit(task));
+		}
+		List<T> results = new ArrayList<>();
+		try {
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return results;
+	}
+
+	private static Path resolve(Path from, Path to, Path path) {
+		return from.equals(path) ? to : to.resolve(from.relativize(path).toString());
+	}
+
+	/**
+	 * Clones the input with copy-on-write reflinks.
+	 *
+	 * @return <tt>true</tt> if the whole input was cloned
+	 */
+	private static boolean reflink(Path source, Path copy) throws InterruptedException {
+		String os = System.getProperty("os.name").toLowerCase();
+		List<String> command = new ArrayList<>();
+		command.add("cp");
+		if (os.contains("linux")) {
+			command.add("--reflink=always");
+			command.add("-a");
+		} else if (os.contains("mac")) {
+			command.add("-c");
+			command.add("-pR");
+		} else {
+			return false;
+		}
+		command.add(source.toString());
+		command.add(copy.toString());
+
+		try {
+			Process process = new ProcessBuilder(command).redirectErrorStream(true)
+					.redirectOutput(new File("/dev/null")).start();
+			process.getOutputStream().close();
+			if (process.waitFor() == 0) {
+				return true;
+			}
+		} catch (IOException e) {
+			// cp not available
+		}
+		try {
+			Util.deleteRecursive(copy.toFile());
+		} catch (IOException e) {
+			// nothing was cloned
+		}
+		return false;
+	}
+
+	private static long size(Path source) throws IOException {
+		final long[] size = new long[1];
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					size[0] += attrs.size();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return size[0];
+	}
+
+	/**
+	 * Amount of data staged by a single copy.
+	 */
+	public static class Stats implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private long written;
+		private long linked;
+
+		Stats() {
+		}
+
+		Stats(long written, long linked) {
+			this.written = written;
+			this.linked = linked;
+		}
+
+		public long getWritten() {
+			return written;
+		}
+
+		public long getLinked() {
+			return linked;
+		}
+	}
+
+	private static class PublishCallable extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final String target;
+
+		PublishCallable(String target) {
+			this.target = target;
+		}
+
+		public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			if (!f.exists()) {
+				// CLI failed before producing output
+				return null;
+			}
+			final Path from = f.toPath();
+			final Path to = new File(target).toPath();
+			if (!f.isDirectory() && to.getParent() != null) {
+				Files.createDirectories(to.getParent());
+			}
+			Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					Files.createDirectories(resolve(from, to, dir));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.copy(file, resolve(from, to, file), StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			return null;
+		}
+	}
+
+	private static class DeleteLaterCallable extends MasterToSlaveFileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+		private final List<String> paths;
+
+		DeleteLaterCallable(List<String> paths) {
+			this.paths = paths;
+		}
+
+		public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			for (String path : paths) {
+				File file = new File(path);
+				if (!file.exists()) {
+					continue;
+				}
+				final File doomed = new File(file.getParentFile(),
+						file.getName() + DELETING_SUFFIX + UUID.randomUUID());
+				final File toDelete = file.renameTo(doomed) ? doomed : file;
+				DELETER.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						Util.deleteRecursive(toDelete);
+						return null;
+					}
+				});
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+
+/**
+ * Enumeration of ways how build step inputs are handed to the CLI
+ *
+ */
+public enum StagingMode {
+	/**
+	 * Inputs are copied to a temporary location in the workspace
+	 */
+	COPY("Copy inputs to temporary workspace location"),
+	/**
+	 * Inputs are hard linked to a temporary location in the workspace where
+	 * possible and copied otherwise
+	 */
+	LINK("Link inputs to temporary workspace location"),
+	/**
+	 * Inputs are passed to the CLI in place
+	 */
+	DIRECT("Pass inputs to CLI in place");
+
+	private String displayName;
+
+	private StagingMode(final String displayName) {
+		this.displayName = displayName;
+	}
+
+	/**
+	 * @return Display name for ui
+	 */
+	public String getDisplayName() {
+		return displayName;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+
+/**
+ * Builder implementation used to define "Toad Edge workflow" build step,
+ * which runs several operations one after another and passes output of each
+ * operation to the next one without copying it out of the workspace.
+ */
+public class ToadEdgeWorkflowBuilder extends Builder {
+
+	private static final String SCRATCH = "WORKFLOW";
+	private final List<WorkflowOperation> operations;
+	private JvmProfile jvmProfile;
+
+	// Fields in config.jelly must match the parameter names in the
+	// "DataBoundConstructor"
+	@DataBoundConstructor
+	public ToadEdgeWorkflowBuilder(List<WorkflowOperation> operations) {
+		this.operations = operations != null ? new ArrayList<>(operations)
+				: Collections.<WorkflowOperation>emptyList();
+	}
+
+	/**
+	 * @return Operations in order of execution. used from the
+	 *         <tt>config.jelly</tt> to display on build step.
+	 */
+	public List<WorkflowOperation> getOperations() {
+		return Collections.unmodifiableList(operations);
+	}
+
+	/**
+	 * @return JVM profile of the CLI, <tt>null</tt> for the profile of the
+	 *         global configuration. used from the <tt>config.jelly</tt> to
+	 *         display on build step.
+	 */
+	public JvmProfile getJvmProfile() {
+		return jvmProfile;
+	}
+
+	@DataBoundSetter
+	public void setJvmProfile(JvmProfile jvmProfile) {
+		this.jvmProfile = jvmProfile;
+	}
+
+	private FilePath getScratch(AbstractBuild<?, ?> build) {
+		return new FilePath(build.getWorkspace(), FileUtils.getTempName(SCRATCH, build));
+	}
+
+	@Override
+	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+			throws IOException, InterruptedException {
+		FilePath scratch = getScratch(build);
+		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+				"CreatingTmpFolder", scratch).toString());
+		scratch.mkdirs();
+
+		ProcessLauncher.warmUp(build, launcher, listener, jvmProfile);
+
+		boolean result = true;
+		WorkflowContext context = new WorkflowContext(build, launcher, listener, scratch, jvmProfile);
+		try {
+			for (int i = 0; i < operations.size(); i++) {
+				WorkflowOperation operation = operations.get(i);
+				listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+						"RunningWorkflowOperation", i + 1, operation.getDescriptor().getDisplayName()).toString());
+
+				context.startOperation(i + 1);
+				WorkflowOperation.Result operationResult = operation.run(context);
+				result &= operationResult.isSuccess();
+				if (!operationResult.isSuccess() && !operationResult.getOutput().exists()) {
+					// nothing the remaining operations could work with
+					break;
+				}
+				context.setPreviousOutput(operationResult.getOutput());
+			}
+		} finally {
+			context.release();
+			listener.getLogger().println(
+					new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "DeletingX", scratch).toString());
+			StagingCopier.deleteLater(Collections.singletonList(scratch));
+		}
+
+		return result;
+	}
+
+	// Overridden for better type safety.
+	@Override
+	public DescriptorImpl getDescriptor() {
+		return (DescriptorImpl) super.getDescriptor();
+	}
+
+	/**
+	 * Descriptor for {@link ToadEdgeWorkflowBuilder}. Used as a singleton. The
+	 * class is marked as public so that it can be accessed from views.
+	 */
+	@Extension
+	public static class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+		/**
+		 * In order to load the persisted global configuration, you have to call
+		 * load() in the constructor.
+		 */
+		public DescriptorImpl() {
+			load();
+		}
+
+		public boolean isApplicable(@SuppressWarnings("rawtypes") Class<? extends AbstractProject> aClass) {
+
+			return true;
+		}
+
+		@Override
+		public String getDisplayName() {
+			return new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "ToadEdgeWorkflow").toString();
+		}
+	}
+}
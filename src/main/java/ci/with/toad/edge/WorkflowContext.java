@@ -0,0 +1,191 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.util.FormValidation;
+
+/**
+ * State shared by operations of a single {@link ToadEdgeWorkflowBuilder} run.
+ * <p>
+ * All inputs and intermediate results live in one scratch folder inside the
+ * workspace, so output of an operation is used by the next one in place.
+ */
+public class WorkflowContext {
+
+	private final AbstractBuild<?, ?> build;
+	private final Launcher launcher;
+	private final BuildListener listener;
+	private final FilePath scratch;
+	private final JvmProfile jvmProfile;
+	private final InputStager stager;
+	private FilePath previousOutput;
+	private int operationNumber;
+
+	WorkflowContext(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath scratch,
+			JvmProfile jvmProfile) {
+		this.build = build;
+		this.launcher = launcher;
+		this.listener = listener;
+		this.scratch = scratch;
+		this.jvmProfile = jvmProfile;
+		this.stager = new InputStager(build, listener, scratch);
+	}
+
+	public AbstractBuild<?, ?> getBuild() {
+		return build;
+	}
+
+	public Launcher getLauncher() {
+		return launcher;
+	}
+
+	public BuildListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return JVM profile of the workflow, <tt>null</tt> for the profile of
+	 *         the global configuration
+	 */
+	public JvmProfile getJvmProfile() {
+		return jvmProfile;
+	}
+
+	void startOperation(int operationNumber) {
+		this.operationNumber = operationNumber;
+	}
+
+	void setPreviousOutput(FilePath previousOutput) {
+		this.previousOutput = previousOutput;
+	}
+
+	/**
+	 * Resolves input of the current operation. An empty location stands for
+	 * the output of the previous operation, which is used without copying.
+	 * Other locations are validated and staged into the scratch folder.
+	 *
+	 * @param location
+	 *            - configured input location, may be empty
+	 * @param name
+	 *            - name of the input inside the scratch folder
+	 * @return input to pass to the CLI
+	 * @throws IOException
+	 *             - if IO exception occurred during copying
+	 * @throws InterruptedException
+	 *             - if copying was interrupted
+	 */
+	public FilePath input(String location, String name) throws IOException, InterruptedException {
+		if (location == null || location.isEmpty()) {
+			if (previousOutput == null) {
+				throw new Error(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+						"WorkflowMissingInput", operationNumber).toString());
+			}
+			return previousOutput;
+		}
+
+		FormValidation checkValidation = FormValidationUtil.restrictLocation(location, build);
+		if (checkValidation != FormValidation.ok()) {
+			throw new Error(checkValidation.getMessage());
+		}
+
+		// copies are removed together with the scratch folder
+		return stager.stage(location, name + operationNumber);
+	}
+
+	/**
+	 * Releases files of the {@link SnapshotStore} used by the operations.
+	 * Copies are removed together with the scratch folder.
+	 *
+	 * @throws IOException
+	 *             - if IO exception occurred during deleting a file no
+	 *             version refers to anymore
+	 */
+	void release() throws IOException {
+		stager.release();
+	}
+
+	/**
+	 * @param name
+	 *            - name of the output inside the scratch folder
+	 * @return location for output of the current operation
+	 */
+	public FilePath output(String name) {
+		return scratch.child(name + operationNumber);
+	}
+
+	/**
+	 * Copies output of the current operation to a configured location. Does
+	 * nothing if the location is empty.
+	 *
+	 * @param output
+	 *            - output in the scratch folder
+	 * @param location
+	 *            - configured output location, may be empty
+	 * @throws IOException
+	 *             - if IO exception occurred during copying
+	 * @throws InterruptedException
+	 *             - if copying was interrupted
+	 */
+	public void publish(FilePath output, String location) throws IOException, InterruptedException {
+		if (location == null || location.isEmpty() || !output.exists()) {
+			return;
+		}
+		if (SnapshotStore.isReference(location)) {
+			SnapshotStore.store(output, location, build, listener);
+			return;
+		}
+		FilePath target = FileUtils.getFilePath(build, location);
+		listener.getLogger().println(new Localizable(ResourceBundleHolder.get(MainConfiguration.class),
+				"CopyingXtoY", output, target).toString());
+		if (output.isDirectory()) {
+			target.mkdirs();
+			output.copyRecursiveTo(target);
+		} else {
+			if (target.getParent() != null) {
+				target.getParent().mkdirs();
+			}
+			output.copyTo(target);
+		}
+		listener.getLogger().println(
+				new Localizable(ResourceBundleHolder.get(MainConfiguration.class), "CopyingFinished").toString());
+	}
+
+	/**
+	 * Runs the CLI.
+	 *
+	 * @param arguments
+	 *            - map of command line arguments
+	 * @return process output value
+	 * @throws IOException
+	 *             - if IO exception occurred during execution
+	 * @throws InterruptedException
+	 *             - if execution of process was interrupted
+	 */
+	public int exec(Map<String, String> arguments) throws IOException, InterruptedException {
+		return ProcessLauncher.exec(arguments, build, launcher, listener, jvmProfile);
+	}
+}
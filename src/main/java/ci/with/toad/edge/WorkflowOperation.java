@@ -0,0 +1,363 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jvnet.localizer.Localizable;
+import org.jvnet.localizer.ResourceBundleHolder;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+
+/**
+ * Single operation of a {@link ToadEdgeWorkflowBuilder}. Inputs left empty
+ * are taken from the output of the previous operation.
+ */
+public abstract class WorkflowOperation extends AbstractDescribableImpl<WorkflowOperation> {
+
+	/**
+	 * Runs the operation.
+	 *
+	 * @param context
+	 *            - state of the workflow run
+	 * @return output of the operation, used as input of the next operation
+	 * @throws IOException
+	 *             - if IO exception occurred during execution
+	 * @throws InterruptedException
+	 *             - if execution was interrupted
+	 */
+	public abstract Result run(WorkflowContext context) throws IOException, InterruptedException;
+
+	/**
+	 * Outcome of an operation.
+	 */
+	public static class Result {
+		private final FilePath output;
+		private final boolean success;
+
+		public Result(FilePath output, boolean success) {
+			this.output = output;
+			this.success = success;
+		}
+
+		public FilePath getOutput() {
+			return output;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+	}
+
+	private static String getString(String key) {
+		return new Localizable(ResourceBundleHolder.get(MainConfiguration.class), key).toString();
+	}
+
+	/**
+	 * Creates snapshot or baseline of a file-system synchronization folder.
+	 */
+	public abstract static class AbstractSnapshotOperation extends WorkflowOperation {
+		private final String inputFileOrFolder;
+		private final String outputFile;
+
+		protected AbstractSnapshotOperation(String inputFileOrFolder, String outputFile) {
+			this.inputFileOrFolder = inputFileOrFolder;
+			this.outputFile = outputFile;
+		}
+
+		public String getInputFileOrFolder() {
+			return inputFileOrFolder;
+		}
+
+		public String getOutputFile() {
+			return outputFile;
+		}
+
+		protected abstract String getAction();
+
+		@Override
+		public Result run(WorkflowContext context) throws IOException, InterruptedException {
+			FilePath input = context.input(inputFileOrFolder, "INPUT");
+			FilePath output = context.output("SNAPSHOT");
+
+			Map<String, String> arguments = new HashMap<>();
+			arguments.put("-in", input.toURI().getPath());
+			arguments.put("-out", output.toURI().getPath());
+			arguments.put(getAction(), "");
+
+			boolean result = (context.exec(arguments) == 0);
+			context.publish(output, outputFile);
+			return new Result(output, result);
+		}
+	}
+
+	public static class CreateSnapshot extends AbstractSnapshotOperation {
+
+		@DataBoundConstructor
+		public CreateSnapshot(String inputFileOrFolder, String outputFile) {
+			super(inputFileOrFolder, outputFile);
+		}
+
+		@Override
+		protected String getAction() {
+			return "-snapshot";
+		}
+
+		@Extension
+		public static class DescriptorImpl extends Descriptor<WorkflowOperation> {
+			@Override
+			public String getDisplayName() {
+				return getString("TakeSnapshot");
+			}
+		}
+	}
+
+	public static class CreateBaseline extends AbstractSnapshotOperation {
+
+		@DataBoundConstructor
+		public CreateBaseline(String inputFileOrFolder, String outputFile) {
+			super(inputFileOrFolder, outputFile);
+		}
+
+		@Override
+		protected String getAction() {
+			return "-baseline";
+		}
+
+		@Extension
+		public static class DescriptorImpl extends Descriptor<WorkflowOperation> {
+			@Override
+			public String getDisplayName() {
+				return getString("TakeBaseline");
+			}
+		}
+	}
+
+	/**
+	 * Compares two schemas.
+	 */
+	public static class Compare extends WorkflowOperation {
+		private final String srcInputFileOrFolder;
+		private final String tgtInputFileOrFolder;
+		private final String configFile;
+		private final String outputFolder;
+
+		@DataBoundConstructor
+		public Compare(String srcInputFileOrFolder, String tgtInputFileOrFolder, String configFile,
+				String outputFolder) {
+			this.srcInputFileOrFolder = srcInputFileOrFolder;
+			this.tgtInputFileOrFolder = tgtInputFileOrFolder;
+			this.configFile = configFile;
+			this.outputFolder = outputFolder;
+		}
+
+		public String getSrcInputFileOrFolder() {
+			return srcInputFileOrFolder;
+		}
+
+		public String getTgtInputFileOrFolder() {
+			return tgtInputFileOrFolder;
+		}
+
+		public String getConfigFile() {
+			return configFile;
+		}
+
+		public String getOutputFolder() {
+			return outputFolder;
+		}
+
+		protected boolean isFailOnDiff() {
+			return false;
+		}
+
+		@Override
+		public Result run(WorkflowContext context) throws IOException, InterruptedException {
+			FilePath source = context.input(srcInputFileOrFolder, "IN_SOURCE");
+			FilePath target = context.input(tgtInputFileOrFolder, "IN_TARGET");
+			FilePath output = context.output("COMPARE");
+			output.mkdirs();
+			if (isFailOnDiff()
+					&& NoDifferences.skipCompare(context.getBuild(), source, target, output, context.getListener())) {
+				// nothing can differ, like in CompareWithBaselineBuilder
+				context.publish(output, outputFolder);
+				return new Result(output, true);
+			}
+
+			Map<String, String> arguments = new HashMap<>();
+			arguments.put("-in_source", source.toURI().getPath());
+			arguments.put("-in_target", target.toURI().getPath());
+			arguments.put("-out", output.toURI().getPath());
+			if (configFile != null && !configFile.isEmpty()) {
+				arguments.put("-settings", context.input(configFile, "CONFIG").toURI().getPath());
+			}
+			arguments.put("-compare", "");
+			if (isFailOnDiff()) {
+				arguments.put("-fail_on_diff", "");
+			}
+
+			boolean result = (context.exec(arguments) == 0);
+			CompareResultParser.attach(context.getBuild(), output, context.getListener());
+			context.publish(output, outputFolder);
+			return new Result(output, result);
+		}
+
+		@Extension
+		public static class DescriptorImpl extends Descriptor<WorkflowOperation> {
+			@Override
+			public String getDisplayName() {
+				return getString("RunCompare");
+			}
+		}
+	}
+
+	/**
+	 * Compares a schema with baseline, fails if they differ.
+	 */
+	public static class CompareWithBaseline extends Compare {
+
+		@DataBoundConstructor
+		public CompareWithBaseline(String srcInputFileOrFolder, String tgtInputFileOrFolder, String configFile,
+				String outputFolder) {
+			super(srcInputFileOrFolder, tgtInputFileOrFolder, configFile, outputFolder);
+		}
+
+		@Override
+		protected boolean isFailOnDiff() {
+			return true;
+		}
+
+		@Extension
+		public static class DescriptorImpl extends Descriptor<WorkflowOperation> {
+			@Override
+			public String getDisplayName() {
+				return getString("RunBaselineCompare");
+			}
+		}
+	}
+
+	/**
+	 * Generates Jenkins HTML report from compare output and attaches it to
+	 * the build.
+	 */
+	public static class GenerateJenkinsReport extends WorkflowOperation {
+		private final String inputFolder;
+
+		@DataBoundConstructor
+		public GenerateJenkinsReport(String inputFolder) {
+			this.inputFolder = inputFolder;
+		}
+
+		public String getInputFolder() {
+			return inputFolder;
+		}
+
+		@Override
+		public Result run(WorkflowContext context) throws IOException, InterruptedException {
+			FilePath input = context.input(inputFolder, "TMP_INPUT");
+			FilePath output = context.output("JENKINS_REPORT");
+			output.mkdirs();
+
+			Boolean result = ShardedCompare.report(context.getBuild(), context.getLauncher(), context.getListener(),
+					context.getJvmProfile(), input, output);
+			if (result == null && NoDifferences.isMarked(input)) {
+				NoDifferences.writeReport(context.getBuild(), output, context.getListener());
+				result = true;
+			}
+			if (result == null) {
+				Map<String, String> arguments = new HashMap<>();
+				arguments.put("-out", output.toURI().getPath());
+				arguments.put("-in", input.toURI().getPath());
+				arguments.put("-report", "");
+				arguments.put("-type", "JENKINS");
+
+				result = (context.exec(arguments) == 0);
+			}
+			GenerateJenkinsReportBuilder.publishReport(context.getBuild(), output, context.getListener());
+			// report is not an input of any further operation
+			return new Result(input, result);
+		}
+
+		@Extension
+		public static class DescriptorImpl extends Descriptor<WorkflowOperation> {
+			@Override
+			public String getDisplayName() {
+				return getString("GenerateJenkinsReport");
+			}
+		}
+	}
+
+	/**
+	 * Generates change SQL script from compare output.
+	 */
+	public static class GenerateChangeScript extends WorkflowOperation {
+		private final String in;
+		private final String out;
+
+		@DataBoundConstructor
+		public GenerateChangeScript(String in, String out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		public String getIn() {
+			return in;
+		}
+
+		public String getOut() {
+			return out;
+		}
+
+		@Override
+		public Result run(WorkflowContext context) throws IOException, InterruptedException {
+			FilePath input = context.input(in, "INPUT");
+			FilePath output = context.output("OUTPUT").withSuffix(".sql");
+			if (NoDifferences.isMarked(input)) {
+				NoDifferences.writeChangeScript(output, context.getListener());
+				context.publish(output, out);
+				return new Result(output, true);
+			}
+
+			Boolean result = ShardedCompare.changeScript(context.getBuild(), context.getLauncher(),
+					context.getListener(), context.getJvmProfile(), input, output);
+			if (result == null) {
+				Map<String, String> arguments = new HashMap<>();
+				arguments.put("-in", input.toURI().getPath());
+				arguments.put("-out", output.toURI().getPath());
+				arguments.put("-sql_change", "");
+
+				result = (context.exec(arguments) == 0);
+			}
+			context.publish(output, out);
+			return new Result(output, result);
+		}
+
+		@Extension
+		public static class DescriptorImpl extends Descriptor<WorkflowOperation> {
+			@Override
+			public String getDisplayName() {
+				return getString("GenerateChangeScript");
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2021 Quest Software Inc.
+ * ALL RIGHTS RESERVED.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either expressor implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ci.with.toad.edge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Builder;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+
+/**
+ * Periodically removes temporary files of build steps that were left in job
+ * workspaces by aborted builds or stopped agents.
+ * <p>
+ * Only workspaces of jobs with Toad Edge build steps are cleaned, and only
+ * top level entries carrying the prefix of temporary files of the build steps
+ * and older than the configured age are removed. Workspaces of jobs that are
+ * building are skipped. Scratch folders of schemas compared on other agents
+ * are removed from the root folder of each node as well.
+ */
+@Extension
+public class WorkspaceJanitor extends AsyncPeriodicWork {
+
+	/**
+	 * Names of temporary files and folders of build steps, e.g.
+	 * <tt>TOAD_EDGE_IN_SOURCE12</tt> or <tt>TOAD_EDGE_INPUT12.dsnapshot</tt>,
+	 * and of such files waiting for background deletion.
+	 */
+	private static final Pattern TEMPORARY = Pattern.compile(Pattern.quote(FileUtils.TEMP_PREFIX)
+			+ "[A-Z_]+\\d+(\\.[^.]+)?(" + Pattern.quote(StagingCopier.DELETING_SUFFIX) + "[0-9a-f-]+)?");
+
+	/**
+	 * Any name, used for folders holding only temporary entries.
+	 */
+	private static final Pattern ANY = Pattern.compile(".+");
+
+	public WorkspaceJanitor() {
+		super("Toad Edge workspace janitor");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return HOUR;
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		MainConfiguration config = GlobalConfiguration.all().get(MainConfiguration.class);
+		if (config == null || config.getJanitorMaxAge() == 0) {
+			return;
+		}
+		long maxAge = TimeUnit.HOURS.toMillis(config.getJanitorMaxAge());
+
+		Jenkins jenkins = Jenkins.getInstance();
+		List<Node> nodes = new ArrayList<>(jenkins.getNodes());
+		nodes.add(jenkins);
+		for (Node node : nodes) {
+			FilePath root = node.getRootPath();
+			if (root == null) {
+				// node is offline
+				continue;
+			}
+			clean(root.child(ShardedCompare.FAN_OUT_DIR), ANY, maxAge, listener);
+		}
+
+		for (AbstractProject<?, ?> project : jenkins.getAllItems(AbstractProject.class)) {
+			if (!(project instanceof TopLevelItem) || project.isBuilding() || !usesToadEdge(project)) {
+				continue;
+			}
+			for (Node node : nodes) {
+				FilePath workspace = node.getWorkspaceFor((TopLevelItem) project);
+				if (workspace == null) {
+					// node is offline
+					continue;
+				}
+				clean(workspace, TEMPORARY, maxAge, listener);
+			}
+		}
+	}
+
+	private static boolean usesToadEdge(AbstractProject<?, ?> project) {
+		if (!(project instanceof Project)) {
+			return false;
+		}
+		for (Builder builder : ((Project<?, ?>) project).getBuilders()) {
+			if (builder.getClass().getPackage() == WorkspaceJanitor.class.getPackage()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void clean(FilePath dir, Pattern names, long maxAge, TaskListener listener)
+			throws InterruptedException {
+		try {
+			for (String removed : dir.act(new CleanCallable(names, maxAge))) {
+				listener.getLogger().println("Removed " + removed + " from " + dir);
+			}
+		} catch (IOException e) {
+			e.printStackTrace(listener.error("Failed to clean " + dir));
+		}
+	}
+
+	private static class CleanCallable extends MasterToSlaveFileCallable<List<String>> {
+		private static final long serialVersionUID = 1L;
+		private final Pattern names;
+		private final long maxAge;
+
+		CleanCallable(Pattern names, long maxAge) {
+			this.names = names;
+			this.maxAge = maxAge;
+		}
+
+		public List<String> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			List<String> removed = new ArrayList<>();
+			File[] entries = workspace.listFiles();
+			if (entries == null) {
+				return removed;
+			}
+			long now = System.currentTimeMillis();
+			for (File entry : entries) {
+				if (names.matcher(entry.getName()).matches() && now - entry.lastModified() > maxAge) {
+					Util.deleteRecursive(entry);
+					removed.add(entry.getName());
+				}
+			}
+			return removed;
+		}
+	}
+}
@@ -1,9 +1,23 @@
 window.onload = drawAll;
-window.onresize = setMaxCodeArea;
+window.onresize = onResize;
 
 var navigation = true;
 var maxHeightForNoNavigation = 300;
 
+/**
+ * Pairs of differences with their blocks and connectors, built once by
+ * buildPairIndex so that drawing never has to search the document.
+ */
+var pairIndex = null;
+
+/**
+ * Pairs whose connectors are currently drawn, by pair number.
+ */
+var drawnPairs = {};
+
+var redrawScheduled = false;
+var layoutScheduled = false;
+
 /**
  * Adds row numbers to blocks with SQL code and draws connectors between pairs
  * of differences
@@ -11,144 +25,359 @@ var maxHeightForNoNavigation = 300;
  */
 function drawAll() {
 	setMaxCodeArea();
-	drawSeparateLineBlocks();
-	drawConnectors();
 	modifyStyles();
+	drawSeparateLineBlocks();
+	pairIndex = buildPairIndex();
+	// connectors left over from the generated page are hidden by the first
+	// redraw unless they are visible
+	drawnPairs = {};
+	for (var i = 0; i < pairIndex.pairs.length; i++) {
+		drawnPairs[pairIndex.pairs[i].number] = pairIndex.pairs[i];
+	}
+	measurePairs();
+	redrawConnectors();
+
+	if (document.addEventListener && !pairIndex.listening) {
+		// scroll events do not bubble, capture them for all code boxes
+		document.addEventListener("scroll", drawConnectors, true);
+		pairIndex.listening = true;
+	}
 }
 
 function modifyStyles() {
 	var mainPanel = document.getElementById("main-panel");
-	mainPanel.style["margin-left"] = "0px";
+	if (mainPanel) {
+		mainPanel.style["margin-left"] = "0px";
+	}
+}
+
+function onResize() {
+	setMaxCodeArea();
+	scheduleLayout();
 }
 
 function drawSeparateLineBlocks() {
 	var aboveLineDiffs = document.querySelectorAll(".aboveLine");
 	var underLineDiffs = document.querySelectorAll(".underLine");
 
-	if (aboveLineDiffs.length > 0) {
-		for (var i = aboveLineDiffs.length - 1; i >= 0; i--) {
-			var pairNumber = aboveLineDiffs[i].className.substr(
-					aboveLineDiffs[i].className.indexOf("pair") + 4, 5);
-
-			var line = getClosest(aboveLineDiffs[i], "line");
-			var diff = document.createElement("DIV");
-
-			if (aboveLineDiffs[i].className.indexOf("source") != -1) { // Source
-																		// difference
-				diff.className = "block source missing separate pair"
-						+ pairNumber;
-			} else { // Target
-				diff.className = "block target missing separate pair"
-						+ pairNumber;
-			}
-
-			line.parentNode.insertBefore(diff, line);
-
-			aboveLineDiffs[i].parentNode.removeChild(aboveLineDiffs[i]);
-		}
+	for (var i = aboveLineDiffs.length - 1; i >= 0; i--) {
+		var line = getClosest(aboveLineDiffs[i], "line");
+		line.parentNode.insertBefore(createSeparateBlock(aboveLineDiffs[i]), line);
+		aboveLineDiffs[i].parentNode.removeChild(aboveLineDiffs[i]);
 	}
 
-	if (underLineDiffs.length > 0) {
-		for (var i = underLineDiffs.length - 1; i >= 0; i--) {
-			var pairNumber = underLineDiffs[i].className.substr(
-					underLineDiffs[i].className.indexOf("pair") + 4, 5);
-
-			var line = getClosest(underLineDiffs[i], "line");
-			var diff = document.createElement("DIV");
-
-			if (underLineDiffs[i].className.indexOf("source") != -1) { // Source
-																		// difference
-				diff.className = "block source missing separate pair"
-						+ pairNumber;
-			} else { // Target
-				diff.className = "block target missing separate pair"
-						+ pairNumber;
-			}
-
-			line.parentNode.insertBefore(diff, line.nextSibling);
-
-			underLineDiffs[i].parentNode.removeChild(underLineDiffs[i]);
-		}
+	for (var i = underLineDiffs.length - 1; i >= 0; i--) {
+		var line = getClosest(underLineDiffs[i], "line");
+		line.parentNode.insertBefore(createSeparateBlock(underLineDiffs[i]),
+				line.nextSibling);
+		underLineDiffs[i].parentNode.removeChild(underLineDiffs[i]);
 	}
 }
 
+/**
+ * Creates block displayed between lines in place of a difference marker.
+ * 
+ * @param {Object}
+ *            marker - element marking difference above or under a line
+ * @returns {Object} - new block of the same pair
+ */
+function createSeparateBlock(marker) {
+	var diff = document.createElement("DIV");
+	var side = marker.className.indexOf("source") != -1 ? "source" : "target";
+	diff.className = "block " + side + " missing separate pair"
+			+ getPairNumber(marker.className);
+	return diff;
+}
+
 function getClosest(el, classname) {
 	do {
 		if (el.className.indexOf(classname) != -1) {
 			return el;
 		}
-	} while (el = el.parentNode);
+	} while ((el = el.parentNode) && el.nodeType == 1);
 
 	return null;
 }
 
 /**
- * Gets positions and heights of paired elements and draws SVG path by setting
- * the "d" attribute to correct mid height values.
+ * @param {Object}
+ *            el - element inside a code box
+ * @returns {Object} - scrolled code box containing the element or null
  */
-function drawConnectors() {
+function getCodeBox(el) {
+	for (; el && el.nodeType == 1; el = el.parentNode) {
+		if ((" " + el.getAttribute("class") + " ").indexOf(" res ") != -1) {
+			return el;
+		}
+	}
+	return null;
+}
+
+/**
+ * @param {String}
+ *            className - class attribute of an element
+ * @returns {String} - number of the pair the element belongs to or null
+ */
+function getPairNumber(className) {
+	var index = className ? className.indexOf("pair") : -1;
+	return index == -1 ? null : className.substr(index + 4, 5);
+}
+
+/**
+ * Indexes blocks, SVG paths and lines of all pairs in a single pass over each
+ * kind of element.
+ * 
+ * @returns {Object} - pairs that have a connector and blocks on both sides
+ */
+function buildPairIndex() {
+	var byNumber = {};
+	var getPair = function(number) {
+		if (!byNumber[number]) {
+			byNumber[number] = {
+				number : number,
+				source : {
+					blocks : []
+				},
+				target : {
+					blocks : []
+				}
+			};
+		}
+		return byNumber[number];
+	};
+	var addBlocks = function(blocks, side) {
+		for (var i = 0; i < blocks.length; i++) {
+			var number = getPairNumber(blocks[i].className);
+			if (number !== null) {
+				var pairSide = getPair(number)[side];
+				if (pairSide.blocks.length < 2) {
+					pairSide.blocks.push(blocks[i]);
+				}
+			}
+		}
+	};
+	addBlocks(document.querySelectorAll(".left div"), "source");
+	addBlocks(document.querySelectorAll(".right div"), "target");
+
+	var lines = document.getElementsByTagName("line");
+	for (var i = 0; i < lines.length; i++) {
+		var className = lines[i].getAttribute("class");
+		var number = getPairNumber(className);
+		if (number !== null) {
+			getPair(number)[className.indexOf("source") != -1 ? "source"
+					: "target"].line = lines[i];
+		}
+	}
+
+	var pairs = [];
 	var paths = document.getElementsByTagName("path");
-	var dTable = document.querySelectorAll(".dTable");
-
-	if (dTable.length > 0) {
-		var dTableBox = dTable[0].getBoundingClientRect();
-
-		for (var i = 0; i < paths.length; i++) {
-			var pairNumber = paths[i].className.baseVal.substr(
-					paths[i].className.baseVal.indexOf("pair") + 4, 5);
-			var sourceBlocks = document.querySelectorAll(".left div.pair"
-					+ pairNumber);
-			var targetBlocks = document.querySelectorAll(".right div.pair"
-					+ pairNumber);
-
-			var sourceStartBlock = sourceBlocks[0];
-			var sourceEndBlock = sourceBlocks[1];
-			var targetStartBlock = targetBlocks[0];
-			var targetEndBlock = targetBlocks[1];
-
-			var startOffsetsSource = sourceStartBlock.getBoundingClientRect();
-			var endOffsetsSource = sourceEndBlock ? sourceEndBlock
-					.getBoundingClientRect() : sourceStartBlock
-					.getBoundingClientRect();
-			var source = (startOffsetsSource.top
-					+ (endOffsetsSource.bottom - startOffsetsSource.top) / 2 - sourceStartBlock.scrollTop)
-					- dTableBox.top;
-
-			var startOffsetsTarget = targetStartBlock.getBoundingClientRect();
-			var endOffsetsTarget = targetEndBlock ? targetEndBlock
-					.getBoundingClientRect() : targetStartBlock
-					.getBoundingClientRect();
-			var target = (startOffsetsTarget.top
-					+ (endOffsetsTarget.bottom - startOffsetsTarget.top) / 2 - targetStartBlock.scrollTop)
-					- dTableBox.top;
-
-			var connector = document.querySelector("path.pair" + pairNumber);
-			connector.setAttribute("d", "M 0 " + source + " C 10 " + source
-					+ ", 50 " + target + ", 60 " + target); // SVG property
-
-			var sourceLine = document.querySelector("line.source.pair"
-					+ pairNumber);
-
-			var targetLine = document.querySelector("line.target.pair"
-					+ pairNumber);
-
-			sourceLine.setAttribute('x1', 0);
-			sourceLine.setAttribute('y1', startOffsetsSource.top
-					- sourceStartBlock.scrollTop - dTableBox.top);
-			sourceLine.setAttribute('x2', 0);
-			sourceLine.setAttribute('y2', endOffsetsSource.bottom
-					- sourceStartBlock.scrollTop - dTableBox.top);
-			sourceLine.setAttribute('stroke-width', 2);
-
-			targetLine.setAttribute('x1', 60);
-			targetLine.setAttribute('y1', startOffsetsTarget.top
-					- targetStartBlock.scrollTop - dTableBox.top);
-			targetLine.setAttribute('x2', 60);
-			targetLine.setAttribute('y2', endOffsetsTarget.bottom
-					- targetStartBlock.scrollTop - dTableBox.top);
-			targetLine.setAttribute('stroke-width', 2);
+	for (var i = 0; i < paths.length; i++) {
+		var number = getPairNumber(paths[i].getAttribute("class"));
+		if (number === null) {
+			continue;
+		}
+		var pair = getPair(number);
+		if (pair.source.blocks.length > 0 && pair.target.blocks.length > 0) {
+			pair.path = paths[i];
+			pairs.push(pair);
 		}
 	}
+
+	return {
+		pairs : pairs,
+		table : document.querySelector(".dTable"),
+		source : {
+			name : "source",
+			container : pairs.length > 0 ? getCodeBox(pairs[0].source.blocks[0]) : null
+		},
+		target : {
+			name : "target",
+			container : pairs.length > 0 ? getCodeBox(pairs[0].target.blocks[0]) : null
+		}
+	};
+}
+
+/**
+ * Measures positions of all paired blocks within their scrolled code boxes.
+ * Only reads the layout, so the browser computes it once for the whole
+ * report. Needed again only when the layout changes, not when scrolling.
+ */
+function measurePairs() {
+	if (!pairIndex || !pairIndex.table) {
+		return;
+	}
+	var tableTop = pairIndex.table.getBoundingClientRect().top;
+	var sides = [ pairIndex.source, pairIndex.target ];
+	for (var s = 0; s < sides.length; s++) {
+		var side = sides[s];
+		var top = side.container ? side.container.getBoundingClientRect().top
+				: tableTop;
+		var scrollTop = side.container ? side.container.scrollTop : 0;
+		side.offset = top - tableTop;
+		side.maxSpan = 0;
+		side.entries = [];
+
+		for (var i = 0; i < pairIndex.pairs.length; i++) {
+			var pairSide = pairIndex.pairs[i][side.name];
+			var blocks = pairSide.blocks;
+			pairSide.top = blocks[0].getBoundingClientRect().top - top + scrollTop;
+			pairSide.bottom = blocks[blocks.length - 1].getBoundingClientRect().bottom
+					- top + scrollTop;
+			side.maxSpan = Math.max(side.maxSpan, pairSide.bottom - pairSide.top);
+			side.entries.push(pairIndex.pairs[i]);
+		}
+		side.entries.sort(function(a, b) {
+			return a[side.name].top - b[side.name].top;
+		});
+	}
+}
+
+/**
+ * Schedules redraw of visible connectors, at most once per frame. Called on
+ * scrolling.
+ */
+function drawConnectors() {
+	if (!redrawScheduled) {
+		redrawScheduled = true;
+		nextFrame(redrawConnectors);
+	}
+}
+
+/**
+ * Schedules measuring of all blocks followed by redraw. Called when the
+ * layout of the report changes.
+ */
+function scheduleLayout() {
+	if (!layoutScheduled) {
+		layoutScheduled = true;
+		nextFrame(function() {
+			layoutScheduled = false;
+			measurePairs();
+			redrawConnectors();
+		});
+	}
+}
+
+function nextFrame(callback) {
+	if (window.requestAnimationFrame) {
+		window.requestAnimationFrame(callback);
+	} else {
+		setTimeout(callback, 16);
+	}
+}
+
+/**
+ * Gets part of the code box currently visible, in the same coordinates as
+ * measured positions of blocks.
+ */
+function getView(side) {
+	if (side.container) {
+		return {
+			scrollTop : side.container.scrollTop,
+			top : side.container.scrollTop,
+			bottom : side.container.scrollTop + side.container.clientHeight
+		};
+	}
+	var tableTop = pairIndex.table.getBoundingClientRect().top;
+	var height = window.innerHeight || document.documentElement.clientHeight;
+	return {
+		scrollTop : 0,
+		top : -tableTop,
+		bottom : height - tableTop
+	};
+}
+
+/**
+ * Adds pairs with blocks in the visible part of a code box. Entries are
+ * sorted by top of the block, so the search starts at the last block that
+ * begins above the bottom of the view.
+ */
+function collectVisible(side, view, visible) {
+	var entries = side.entries;
+	var low = 0;
+	var high = entries.length;
+	while (low < high) {
+		var middle = (low + high) >>> 1;
+		if (entries[middle][side.name].top <= view.bottom) {
+			low = middle + 1;
+		} else {
+			high = middle;
+		}
+	}
+	for (var i = low - 1; i >= 0; i--) {
+		var pairSide = entries[i][side.name];
+		if (pairSide.top < view.top - side.maxSpan) {
+			break;
+		}
+		if (pairSide.bottom >= view.top) {
+			visible[entries[i].number] = entries[i];
+		}
+	}
+}
+
+/**
+ * Draws connectors of pairs visible on either side and hides connectors that
+ * scrolled out of view. Reads all it needs first and only then updates SVG
+ * elements.
+ */
+function redrawConnectors() {
+	redrawScheduled = false;
+	if (!pairIndex || !pairIndex.table || !pairIndex.source.entries) {
+		return;
+	}
+	var sourceView = getView(pairIndex.source);
+	var targetView = getView(pairIndex.target);
+	var visible = {};
+	collectVisible(pairIndex.source, sourceView, visible);
+	collectVisible(pairIndex.target, targetView, visible);
+
+	for ( var number in drawnPairs) {
+		if (!visible[number]) {
+			setDisplay(drawnPairs[number], "none");
+		}
+	}
+	for ( var number in visible) {
+		var pair = visible[number];
+		var sourceTop = pairIndex.source.offset + pair.source.top
+				- sourceView.scrollTop;
+		var sourceBottom = pairIndex.source.offset + pair.source.bottom
+				- sourceView.scrollTop;
+		var targetTop = pairIndex.target.offset + pair.target.top
+				- targetView.scrollTop;
+		var targetBottom = pairIndex.target.offset + pair.target.bottom
+				- targetView.scrollTop;
+		var source = (sourceTop + sourceBottom) / 2;
+		var target = (targetTop + targetBottom) / 2;
+
+		pair.path.setAttribute("d", "M 0 " + source + " C 10 " + source
+				+ ", 50 " + target + ", 60 " + target); // SVG property
+		setLine(pair.source.line, 0, sourceTop, sourceBottom);
+		setLine(pair.target.line, 60, targetTop, targetBottom);
+		if (!drawnPairs[number]) {
+			setDisplay(pair, "");
+		}
+	}
+	drawnPairs = visible;
+}
+
+function setLine(line, x, top, bottom) {
+	if (line) {
+		line.setAttribute('x1', x);
+		line.setAttribute('y1', top);
+		line.setAttribute('x2', x);
+		line.setAttribute('y2', bottom);
+		line.setAttribute('stroke-width', 2);
+	}
+}
+
+function setDisplay(pair, display) {
+	pair.path.style.display = display;
+	if (pair.source.line) {
+		pair.source.line.style.display = display;
+	}
+	if (pair.target.line) {
+		pair.target.line.style.display = display;
+	}
 }
 
 /**
@@ -199,7 +428,8 @@ function highlightPair(object) {
 	addFirstLastClassesToSpans(sourceSpans);
 	addFirstLastClassesToSpans(targetSpans);
 
-	drawConnectors();
+	// highlighting may change size of the blocks
+	scheduleLayout();
 }
 
 function addFirstLastClassesToSpans(spans) {